@@ -0,0 +1,39 @@
+package benchmarks;
+
+import ascii_art.img_to_char.CharRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering every printable ASCII char to a glyph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CharRendererBenchmark {
+    private static final String FONT_NAME = "Courier New";
+
+    @Param({"16", "64"})
+    public int pixels;
+
+    private char[] charSet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        charSet = SyntheticImages.charSet(95).toCharArray();
+    }
+
+    @Benchmark
+    public int getImg() {
+        int whitePixels = 0;
+        for (char c : charSet) {
+            boolean[][] glyph = CharRenderer.getImg(c, pixels, FONT_NAME);
+            whitePixels += glyph[pixels / 2][pixels / 2] ? 1 : 0;
+        }
+        return whitePixels;
+    }
+}
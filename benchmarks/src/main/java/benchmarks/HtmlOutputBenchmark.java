@@ -0,0 +1,47 @@
+package benchmarks;
+
+import ascii_output.HtmlAsciiOutput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing a rendered image to an HTML file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlOutputBenchmark {
+    private static final String FONT_NAME = "Courier New";
+
+    @Param({"64", "256", "1024"})
+    public int charsInRow;
+
+    private HtmlAsciiOutput output;
+    private char[][] chars;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = Files.createTempFile("ascii-art-bench", ".html").toFile();
+        file.deleteOnExit();
+        output = new HtmlAsciiOutput(file.getPath(), FONT_NAME);
+        char[] charSet = SyntheticImages.charSet(95).toCharArray();
+        chars = new char[charsInRow * 3 / 4][charsInRow];
+        for (int y = 0; y < chars.length; y++) {
+            for (int x = 0; x < charsInRow; x++) {
+                chars[y][x] = charSet[(x * 31 + y * 17) % charSet.length];
+            }
+        }
+    }
+
+    @Benchmark
+    public void output() {
+        output.output(chars);
+    }
+}
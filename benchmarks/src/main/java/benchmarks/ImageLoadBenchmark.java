@@ -0,0 +1,64 @@
+package benchmarks;
+
+import image.Image;
+import image.StreamingImage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding and padding an image file into a FileImage, and streaming the tile brightness
+ * of a tall image band by band, whose time should grow linearly with the height.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageLoadBenchmark {
+    @Param({"256", "1000", "2049"})
+    public int imageSize;
+
+    private String filename;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = SyntheticImages.writePng(imageSize, imageSize * 3 / 4);
+        filename = file.getPath();
+    }
+
+    @Benchmark
+    public Image load() {
+        return Image.fromFile(filename);
+    }
+
+    /**
+     * A tall image of a fixed width, streamed in tiles of 8x8 pixels
+     */
+    @State(Scope.Benchmark)
+    public static class TallImage {
+        private static final int WIDTH = 1024;
+
+        @Param({"4096", "16384"})
+        public int height;
+
+        private String filename;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            filename = SyntheticImages.writePng(WIDTH, height).getPath();
+        }
+    }
+
+    @Benchmark
+    public float stream(TallImage tallImage) throws IOException {
+        float[] total = {0};
+        try (StreamingImage image = StreamingImage.open(tallImage.filename)) {
+            image.readTileRows(8, (row, brightness) -> total[0] += brightness[0]);
+        }
+        return total[0];
+    }
+}
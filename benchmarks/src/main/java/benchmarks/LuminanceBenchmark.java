@@ -0,0 +1,60 @@
+package benchmarks;
+
+import image.BrightnessIntegralImage;
+import image.BrightnessPyramid;
+import image.Image;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the brightness tables from the pixels with each luminance kernel, which is
+ * selected by a system property of the forked JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LuminanceBenchmark {
+    private static final String SCALAR_KERNEL = "-Dascii_art.luminance=scalar";
+    private static final String PACKED_KERNEL = "-Dascii_art.luminance=packed";
+
+    @Param({"1000", "2049"})
+    public int imageSize;
+
+    @Param({"2", "16", "64"})
+    public int tileSize;
+
+    private Image image;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Image.fromFile(SyntheticImages.writePng(imageSize, imageSize * 3 / 4).getPath());
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = SCALAR_KERNEL)
+    public float pyramidScalar() {
+        return new BrightnessPyramid(image).getAverageBrightness(tileSize, 0, 0);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = PACKED_KERNEL)
+    public float pyramidPacked() {
+        return new BrightnessPyramid(image).getAverageBrightness(tileSize, 0, 0);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = SCALAR_KERNEL)
+    public float integralScalar() {
+        return new BrightnessIntegralImage(image).getAverageBrightness(0, 0, tileSize, tileSize);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = PACKED_KERNEL)
+    public float integralPacked() {
+        return new BrightnessIntegralImage(image).getAverageBrightness(0, 0, tileSize, tileSize);
+    }
+}
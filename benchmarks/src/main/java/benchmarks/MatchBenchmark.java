@@ -0,0 +1,92 @@
+package benchmarks;
+
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.CharSet;
+import ascii_art.img_to_char.GlyphBrightnessIndex;
+import ascii_art.img_to_char.ShapeImgCharMatcher;
+import image.Image;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures matching a character to every sub image of a loaded image, and matching again after
+ * a single char was added to or removed from the char set. The shape matcher is measured over the
+ * same images and char sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark {
+    private static final String FONT_NAME = "Courier New";
+
+    @Param({"256", "1000", "2049"})
+    public int imageSize;
+
+    @Param({"10", "95"})
+    public int charSetSize;
+
+    @Param({"64", "256", "1024"})
+    public int charsInRow;
+
+    private Image image;
+    private GlyphBrightnessIndex brightnessIndex;
+    private CharSet charSet;
+    private int imageCharsInRow;
+    private BrightnessImgCharMatcher matcher;
+    private BrightnessImgCharMatcher rematcher;
+    private CharSet toggledCharSet;
+    private ShapeImgCharMatcher shapeMatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Image.fromFile(SyntheticImages.writePng(imageSize, imageSize * 3 / 4).getPath());
+        charSet = SyntheticImages.charSet(charSetSize);
+        imageCharsInRow = Math.min(charsInRow, image.getWidth() / 2);
+        brightnessIndex = new GlyphBrightnessIndex();
+        BrightnessImgCharMatcher.fillBrightnessIndex(brightnessIndex, FONT_NAME,
+                SyntheticImages.charSet(95));
+        rematcher = new BrightnessImgCharMatcher(image, FONT_NAME, 1, brightnessIndex);
+        toggledCharSet = new CharSet(charSet);
+        rematcher.chooseChars(imageCharsInRow, toggledCharSet);
+        shapeMatcher = new ShapeImgCharMatcher(image, FONT_NAME);
+    }
+
+    /**
+     * The matcher keeps the tiles of its last render, so every full match needs a new one
+     */
+    @Setup(Level.Invocation)
+    public void createMatcher() {
+        matcher = new BrightnessImgCharMatcher(image, FONT_NAME, 1, brightnessIndex);
+    }
+
+    @Benchmark
+    public char[][] chooseChars() {
+        return matcher.chooseChars(imageCharsInRow, charSet);
+    }
+
+    /**
+     * Adds or removes a single char of the char set, so unless it changes the brightness range of
+     * the char set only the tiles around it are matched again
+     */
+    @Benchmark
+    public char[][] rematchAfterToggle() {
+        char toggled = (char) (' ' + charSetSize / 2);
+        if (!toggledCharSet.remove(toggled)) {
+            toggledCharSet.add(toggled);
+        }
+        return rematcher.chooseChars(imageCharsInRow, toggledCharSet);
+    }
+
+    /**
+     * The shape matcher keeps the glyph masks of its char set, so only the sub images are matched
+     */
+    @Benchmark
+    public char[][] chooseCharsByShape() {
+        return shapeMatcher.chooseChars(imageCharsInRow, charSet);
+    }
+}
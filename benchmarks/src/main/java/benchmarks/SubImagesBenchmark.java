@@ -0,0 +1,46 @@
+package benchmarks;
+
+import image.Image;
+import image.SubImages;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures splitting a loaded image into sub images and reading the brightness of every one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubImagesBenchmark {
+    @Param({"256", "1000", "2049"})
+    public int imageSize;
+
+    @Param({"64", "256", "1024"})
+    public int charsInRow;
+
+    private Image image;
+    private int subImageSize;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Image.fromFile(SyntheticImages.writePng(imageSize, imageSize * 3 / 4).getPath());
+        subImageSize = Math.max(1, image.getWidth() / charsInRow);
+    }
+
+    @Benchmark
+    public float split() {
+        SubImages subImages = image.getSubImages(subImageSize);
+        float total = 0;
+        for (int row = 0; row < subImages.getNumRows(); row++) {
+            for (int col = 0; col < subImages.getNumCols(); col++) {
+                total += subImages.getBrightness(row, col);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import ascii_art.img_to_char.CharSet;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Generates deterministic images for the benchmarks, so no image files need to be shipped.
+ */
+final class SyntheticImages {
+    private static final int MAX_RGB = 255;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Writes a gradient image with some high frequency detail to a temporary PNG file
+     * @param width width of the image
+     * @param height height of the image
+     * @return the written file, deleted when the JVM exits
+     * @throws IOException in case the image could not be written
+     */
+    static File writePng(int width, int height) throws IOException {
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = x * MAX_RGB / width;
+                int green = y * MAX_RGB / height;
+                int blue = (x ^ y) & MAX_RGB;
+                im.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        File file = Files.createTempFile("ascii-art-bench-" + width + "x" + height, ".png")
+                .toFile();
+        file.deleteOnExit();
+        ImageIO.write(im, "png", file);
+        return file;
+    }
+
+    /**
+     * Returns the first chars of the printable ASCII range
+     * @param size number of chars, at most 95
+     * @return the char set
+     */
+    static CharSet charSet(int size) {
+        CharSet chars = new CharSet();
+        chars.addRange(' ', (char) (' ' + size - 1));
+        return chars;
+    }
+}
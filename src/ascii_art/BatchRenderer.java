@@ -0,0 +1,587 @@
+package ascii_art;
+
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.CharSet;
+import ascii_art.img_to_char.GlyphBrightnessIndex;
+import ascii_art.img_to_char.ImgCharMatcher;
+import ascii_art.img_to_char.ShapeImgCharMatcher;
+import ascii_output.AsciiOutput;
+import ascii_output.AsciiRowWriter;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.DiffConsoleAsciiOutput;
+import ascii_output.GzipHtmlAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import image.Image;
+import image.ImageFrames;
+import image.StreamingImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Non interactive renderer which renders many images in a single run, using the same char set,
+ * resolution and output format for all of them. The images are rendered on a bounded pool of
+ * worker threads which share a single table of glyph brightness values. With --animate every input
+ * is an animated GIF or a directory of numbered frames instead, which is rendered frame by frame
+ * through a FramePipeline, and with --diff the console frames are drawn over each other. With
+ * --gzip the HTML files are compressed while they are written. Each HTML file is named after its
+ * input without the extension, and a batch in which two inputs share a name renders nothing.
+ * @author Eliyahu Tamarkin
+ */
+class BatchRenderer {
+    private static final String USAGE = "USAGE: java ascii_art.Driver " + Driver.BATCH_FLAG +
+            " [--chars <range>]... [--res <chars in row>] [--output html|console]" +
+            " [--out-dir <dir>] [--threads <n>] [--index <file>] [--stream]" +
+            " [--matcher brightness|shape] [--animate [--queue <frames>] [--diff]] [--color]" +
+            " [--gzip <level 0-9> [--gzip-thread]] <image or dir>...";
+
+    // option names
+    private static final String CHARS_OPTION = "--chars";
+    private static final String RES_OPTION = "--res";
+    private static final String OUTPUT_OPTION = "--output";
+    private static final String OUT_DIR_OPTION = "--out-dir";
+    private static final String THREADS_OPTION = "--threads";
+    private static final String INDEX_OPTION = "--index";
+    private static final String STREAM_OPTION = "--stream";
+    private static final String MATCHER_OPTION = "--matcher";
+    private static final String ANIMATE_OPTION = "--animate";
+    private static final String QUEUE_OPTION = "--queue";
+    private static final String COLOR_OPTION = "--color";
+    private static final String DIFF_OPTION = "--diff";
+    private static final String GZIP_OPTION = "--gzip";
+    private static final String GZIP_THREAD_OPTION = "--gzip-thread";
+    private static final String OPTION_PREFIX = "--";
+    private static final String HTML = "html";
+    private static final String CONSOLE = "console";
+
+    // output constants
+    private static final String HTML_EXTENSION = ".html";
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final char EXTENSION_SEPARATOR = '.';
+    private static final String CONSOLE_HEADER = "%s:%n";
+    private static final String IMAGE_TIMING_MESSAGE = "%s: %d ms (%dx%d chars)%n";
+    private static final String TOTAL_TIMING_MESSAGE = "Rendered %d of %d images in %d ms%n";
+    private static final String FRAME_NAME_FORMAT = "%s_%05d";
+    private static final String CONSOLE_FRAME_HEADER = "%s frame %d:%n";
+    private static final String ANIMATION_TIMING_MESSAGE =
+            "%s: %d frames in %d ms, first frame after %d ms, %.1f frames per second%n";
+    private static final String TOTAL_ANIMATIONS_MESSAGE = "Rendered %d of %d animations in %d ms%n";
+    private static final String OUTPUT_COLLISION_MESSAGE =
+            "\"%s\" and \"%s\" would both be written as \"%s\", rename one of them";
+    private static final long NANOS_IN_MILLI = 1_000_000;
+    private static final double NANOS_IN_SECOND = 1e9;
+    private static final long STREAMING_MIN_PIXELS = 1L << 26;
+    private static final int DEFAULT_QUEUE_CAPACITY = 4;
+    private static final int NO_GZIP = -1;
+
+    private final List<String> inputs = new ArrayList<>();
+    private final CharSet chars = new CharSet();
+    private int charsInRow = Shell.INITIAL_CHARS_IN_ROW;
+    private String outputTo = HTML;
+    private String outDir = ".";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String indexFile;
+    private boolean streamAll;
+    private String matcherName = Shell.BRIGHTNESS_MATCHER;
+    private boolean animate;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private boolean colored;
+    private boolean diffConsole;
+    private int gzipLevel = NO_GZIP;
+    private boolean gzipInBackground;
+
+    /**
+     * Parses the arguments and renders all the requested images
+     * @param args batch mode arguments, without the batch flag itself
+     */
+    static void run(String[] args) {
+        BatchRenderer renderer = new BatchRenderer();
+        if (!renderer.parseArguments(args)) {
+            System.err.println(USAGE);
+            return;
+        }
+        renderer.renderAll();
+    }
+
+    /**
+     * Parses the command line arguments into the renderer's settings
+     * @param args batch mode arguments
+     * @return true if the arguments are valid and false otherwise
+     */
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case CHARS_OPTION:
+                        char[] charRange = Shell.getCharRange(args[++i]);
+                        if (charRange.length == 0) {
+                            return false;
+                        }
+                        chars.addRange(charRange[0], charRange[1]);
+                        break;
+                    case RES_OPTION:
+                        charsInRow = Integer.parseInt(args[++i]);
+                        break;
+                    case OUTPUT_OPTION:
+                        outputTo = args[++i];
+                        break;
+                    case OUT_DIR_OPTION:
+                        outDir = args[++i];
+                        break;
+                    case THREADS_OPTION:
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case INDEX_OPTION:
+                        indexFile = args[++i];
+                        break;
+                    case STREAM_OPTION:
+                        streamAll = true;
+                        break;
+                    case MATCHER_OPTION:
+                        matcherName = args[++i];
+                        break;
+                    case ANIMATE_OPTION:
+                        animate = true;
+                        break;
+                    case QUEUE_OPTION:
+                        queueCapacity = Integer.parseInt(args[++i]);
+                        break;
+                    case COLOR_OPTION:
+                        colored = true;
+                        break;
+                    case DIFF_OPTION:
+                        diffConsole = true;
+                        break;
+                    case GZIP_OPTION:
+                        gzipLevel = Integer.parseInt(args[++i]);
+                        break;
+                    case GZIP_THREAD_OPTION:
+                        gzipInBackground = true;
+                        break;
+                    default:
+                        if (args[i].startsWith(OPTION_PREFIX)) {
+                            return false;
+                        }
+                        inputs.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        if (chars.isEmpty()) {
+            for (char c : Shell.INITIAL_CHARACTERS) {
+                chars.add(c);
+            }
+        }
+        // shapes are matched from the pixels, which streamed images do not keep
+        boolean brightnessMatcher = matcherName.equals(Shell.BRIGHTNESS_MATCHER);
+        boolean validMatcher = brightnessMatcher ||
+                (matcherName.equals(Shell.SHAPE_MATCHER) && !streamAll);
+        // animation frames are always loaded whole, and colors are averaged from the pixels,
+        // which streamed images do not keep
+        boolean validAnimation = !animate || !streamAll;
+        // only the frames of an animation are drawn over each other
+        boolean validDiff = !diffConsole || (animate && outputTo.equals(CONSOLE));
+        boolean validColor = !colored || (!streamAll && !animate);
+        boolean validGzip = gzipLevel == NO_GZIP ? !gzipInBackground : outputTo.equals(HTML) &&
+                gzipLevel >= Deflater.NO_COMPRESSION && gzipLevel <= Deflater.BEST_COMPRESSION;
+        return !inputs.isEmpty() && threads > 0 && queueCapacity > 0 &&
+                Integer.bitCount(charsInRow) == 1 &&
+                (outputTo.equals(HTML) || outputTo.equals(CONSOLE)) && validMatcher &&
+                validAnimation && validColor && validDiff && validGzip;
+    }
+
+    /**
+     * Renders every input image or animation and reports the timings. Nothing is rendered if
+     * two inputs would be written to the same HTML file.
+     */
+    private void renderAll() {
+        List<File> inputFiles = listInputFiles();
+        if (outputTo.equals(HTML) && !hasDistinctOutputNames(inputFiles)) {
+            return;
+        }
+        GlyphBrightnessIndex brightnessIndex = loadBrightnessIndex();
+        BrightnessImgCharMatcher.fillBrightnessIndex(brightnessIndex, Shell.OUTPUT_FONT_NAME,
+                chars);
+        if (animate) {
+            renderAnimations(inputFiles, brightnessIndex);
+        }
+        else {
+            renderImages(inputFiles, brightnessIndex);
+        }
+        saveBrightnessIndex(brightnessIndex);
+    }
+
+    /**
+     * Renders every input image on the worker pool and reports the timings
+     * @param imageFiles images to render
+     * @param brightnessIndex shared glyph brightness values
+     */
+    private void renderImages(List<File> imageFiles, GlyphBrightnessIndex brightnessIndex) {
+        long startTime = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (File imageFile : imageFiles) {
+            results.add(workers.submit(() -> renderImage(imageFile, chars, brightnessIndex)));
+        }
+        workers.shutdown();
+        int numRendered = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) {
+                    numRendered++;
+                }
+            } catch (Exception e) {
+                Logger.getGlobal().severe("Failed to render image: " + e);
+            }
+        }
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.printf(TOTAL_TIMING_MESSAGE, numRendered, imageFiles.size(),
+                (System.nanoTime() - startTime) / NANOS_IN_MILLI);
+    }
+
+    /**
+     * Renders the input animations one after the other, each on its own pipeline whose matching
+     * stage has the requested number of threads, and reports the timings
+     * @param animationFiles animated image files or directories of frame files to render
+     * @param brightnessIndex shared glyph brightness values
+     */
+    private void renderAnimations(List<File> animationFiles,
+                                  GlyphBrightnessIndex brightnessIndex) {
+        long startTime = System.nanoTime();
+        int numRendered = 0;
+        for (File animationFile : animationFiles) {
+            if (renderAnimation(animationFile, brightnessIndex)) {
+                numRendered++;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        System.err.printf(TOTAL_ANIMATIONS_MESSAGE, numRendered, animationFiles.size(),
+                (System.nanoTime() - startTime) / NANOS_IN_MILLI);
+    }
+
+    /**
+     * Renders the frames of a single animation with the batch settings. The reported frame rate
+     * is the sustained one, from the first frame written to the last.
+     * @param animationFile animated image file or directory of frame files
+     * @param brightnessIndex shared glyph brightness values
+     * @return true if any frame was rendered and false otherwise
+     */
+    private boolean renderAnimation(File animationFile, GlyphBrightnessIndex brightnessIndex) {
+        long startTime = System.nanoTime();
+        long[] firstFrameTime = {0};
+        long[] lastFrameTime = {0};
+        AsciiOutput consoleOutput = diffConsole ? new DiffConsoleAsciiOutput() :
+                new ConsoleAsciiOutput();
+        FramePipeline pipeline = new FramePipeline(queueCapacity, threads,
+                frame -> createMatcher(frame, brightnessIndex).chooseChars(
+                        getImageCharsInRow(frame.getWidth(), frame.getHeight()), chars),
+                (index, frameChars) -> {
+                    outputFrame(animationFile, index, frameChars, consoleOutput);
+                    lastFrameTime[0] = System.nanoTime();
+                    if (firstFrameTime[0] == 0) {
+                        firstFrameTime[0] = lastFrameTime[0];
+                    }
+                });
+        int numFrames;
+        try (ImageFrames frames = ImageFrames.open(animationFile.getPath())) {
+            numFrames = pipeline.run(frames);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to render animation " + animationFile + ": " +
+                    e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (numFrames == 0) {
+            return false;
+        }
+        // a single frame has no rate of its own, so it is counted from the start
+        long rateStartTime = numFrames > 1 ? firstFrameTime[0] : startTime;
+        int rateFrames = numFrames > 1 ? numFrames - 1 : numFrames;
+        System.err.printf(ANIMATION_TIMING_MESSAGE, animationFile, numFrames,
+                (lastFrameTime[0] - startTime) / NANOS_IN_MILLI,
+                (firstFrameTime[0] - startTime) / NANOS_IN_MILLI,
+                rateFrames * NANOS_IN_SECOND / Math.max(1, lastFrameTime[0] - rateStartTime));
+        return true;
+    }
+
+    /**
+     * Writes a frame of an animation to the requested output, each frame to its own HTML file,
+     * after a header to the console, or over the previous frame with --diff
+     * @param animationFile rendered animation
+     * @param index index of the frame in the animation
+     * @param frameChars matched chars of the frame
+     * @param consoleOutput console output reused for all the frames
+     */
+    private void outputFrame(File animationFile, int index, char[][] frameChars,
+                             AsciiOutput consoleOutput) {
+        String frameName = String.format(FRAME_NAME_FORMAT, getOutputName(animationFile), index);
+        if (outputTo.equals(HTML)) {
+            createHtmlOutput(frameName).output(frameChars);
+        }
+        else {
+            if (!diffConsole) {
+                System.out.printf(CONSOLE_FRAME_HEADER, animationFile, index);
+            }
+            consoleOutput.output(frameChars);
+        }
+    }
+
+    /**
+     * Creates the matcher of an image according to the requested matcher name
+     * @param img image to match
+     * @param brightnessIndex shared glyph brightness values
+     * @return the matcher
+     */
+    private ImgCharMatcher createMatcher(Image img, GlyphBrightnessIndex brightnessIndex) {
+        return matcherName.equals(Shell.SHAPE_MATCHER) ?
+                new ShapeImgCharMatcher(img, Shell.OUTPUT_FONT_NAME) :
+                new BrightnessImgCharMatcher(img, Shell.OUTPUT_FONT_NAME, 1, brightnessIndex);
+    }
+
+    /**
+     * Renders a single image with the batch settings. Images with more pixels than
+     * STREAMING_MIN_PIXELS, or every image when streaming was requested, are decoded one band
+     * of rows at a time instead of being loaded whole, unless they are matched by shape or
+     * colored.
+     * @param imageFile image to render
+     * @param charSet chars to be used for the rendering
+     * @param brightnessIndex shared glyph brightness values
+     * @return true if the image was rendered and false otherwise
+     */
+    private boolean renderImage(File imageFile, CharSet charSet,
+                                GlyphBrightnessIndex brightnessIndex) {
+        long startTime = System.nanoTime();
+        int imageCharsInRow;
+        int imageCharsInCol;
+        try (StreamingImage source = StreamingImage.open(imageFile.getPath())) {
+            imageCharsInRow = getImageCharsInRow(source.getWidth(), source.getHeight());
+            int subImageSize = source.getWidth() / imageCharsInRow;
+            imageCharsInCol = source.getHeight() / subImageSize;
+            boolean streamImage = streamAll ||
+                    source.getNumOriginalPixels() > STREAMING_MIN_PIXELS;
+            if (streamImage && matcherName.equals(Shell.BRIGHTNESS_MATCHER) && !colored) {
+                BrightnessImgCharMatcher charMatcher = new BrightnessImgCharMatcher(null,
+                        Shell.OUTPUT_FONT_NAME, 1, brightnessIndex);
+                char[] fittedRow = new char[imageCharsInRow];
+                outputRows(imageFile, imageCharsInCol, imageCharsInRow, null, rowConsumer ->
+                        source.readTileRows(subImageSize, (row, brightness) -> {
+                            charMatcher.chooseCharsForRow(brightness, charSet, fittedRow);
+                            rowConsumer.accept(fittedRow);
+                        }));
+            }
+            else {
+                Image img = Image.fromFile(imageFile.getPath());
+                if (img == null) {
+                    throw new IOException("Failed to decode image file " + imageFile);
+                }
+                ImgCharMatcher charMatcher = createMatcher(img, brightnessIndex);
+                int[][] colors = colored ? charMatcher.chooseColors(imageCharsInRow) : null;
+                outputRows(imageFile, imageCharsInCol, imageCharsInRow, colors, rowConsumer ->
+                        charMatcher.chooseChars(imageCharsInRow, charSet, rowConsumer));
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to render image file " + imageFile + ": " +
+                    e.getMessage());
+            return false;
+        }
+        System.err.printf(IMAGE_TIMING_MESSAGE, imageFile,
+                (System.nanoTime() - startTime) / NANOS_IN_MILLI, imageCharsInRow, imageCharsInCol);
+        return true;
+    }
+
+    /**
+     * Returns the number of chars in a row to render an image with, the requested resolution
+     * is fitted into the image's bounds like the shell does
+     * @param width padded width of the image
+     * @param height padded height of the image
+     * @return the number of chars in a row
+     */
+    private int getImageCharsInRow(int width, int height) {
+        return fitCharsInRow(charsInRow, width, height);
+    }
+
+    /**
+     * Fits a requested number of chars in a row into an image's bounds like the shell does
+     * @param charsInRow requested number of chars in a row
+     * @param width padded width of the image
+     * @param height padded height of the image
+     * @return the number of chars in a row to render the image with
+     */
+    static int fitCharsInRow(int charsInRow, int width, int height) {
+        int minCharsInRow = Math.max(1, width / height);
+        int maxCharsInRow = width / Shell.MIN_PIXELS_PER_CHAR;
+        return Math.max(Math.min(charsInRow, maxCharsInRow), minCharsInRow);
+    }
+
+    /**
+     * Writes the rows produced for an image to the requested output
+     * @param imageFile rendered image
+     * @param numRows number of rows which will be produced
+     * @param numCols number of chars in each row
+     * @param colors colors of the chars, or null for an output without colors
+     * @param rowsProducer producer of the rows, in order
+     * @throws IOException in case producing the rows failed
+     */
+    private void outputRows(File imageFile, int numRows, int numCols, int[][] colors,
+                            RowsProducer rowsProducer) throws IOException {
+        int[] nextRow = {0};
+        if (outputTo.equals(HTML)) {
+            HtmlAsciiOutput htmlOutput = createHtmlOutput(getOutputName(imageFile));
+            try (AsciiRowWriter writer = htmlOutput.openRows(numCols)) {
+                if (colors == null) {
+                    rowsProducer.produce(writer::writeRow);
+                }
+                else {
+                    rowsProducer.produce(row -> writer.writeRow(row, colors[nextRow[0]++]));
+                }
+            }
+        }
+        else {
+            char[][] selectedChars = new char[numRows][];
+            rowsProducer.produce(row -> selectedChars[nextRow[0]++] = row.clone());
+            synchronized (System.out) {
+                System.out.printf(CONSOLE_HEADER, imageFile);
+                if (colors == null) {
+                    new ConsoleAsciiOutput().output(selectedChars);
+                }
+                else {
+                    new ConsoleAsciiOutput().output(selectedChars, colors);
+                }
+            }
+        }
+    }
+
+    /**
+     * Producer of the rows of a rendered image
+     */
+    private interface RowsProducer {
+        /**
+         * Produces all the rows in order
+         * @param rowConsumer consumer of the rows, which does not keep the row arrays
+         * @throws IOException in case reading the image failed
+         */
+        void produce(Consumer<char[]> rowConsumer) throws IOException;
+    }
+
+    /**
+     * Lists the files to render. Every input is an animation with --animate, otherwise each
+     * directory is replaced by the regular files it directly contains
+     * @return the images or animations to render
+     */
+    private List<File> listInputFiles() {
+        List<File> inputFiles = new ArrayList<>();
+        for (String input : inputs) {
+            if (animate) {
+                inputFiles.add(new File(input));
+                continue;
+            }
+            File inputFile = new File(input);
+            File[] dirFiles = inputFile.listFiles(File::isFile);
+            if (dirFiles == null) {
+                inputFiles.add(inputFile);
+            }
+            else {
+                Arrays.sort(dirFiles);
+                inputFiles.addAll(Arrays.asList(dirFiles));
+            }
+        }
+        return inputFiles;
+    }
+
+    /**
+     * Creates the HTML output of a file in the output directory, compressed if requested
+     * @param outputName name of the file without its extension
+     * @return the output
+     */
+    private HtmlAsciiOutput createHtmlOutput(String outputName) {
+        String path = Paths.get(outDir, outputName + HTML_EXTENSION).toString();
+        if (gzipLevel == NO_GZIP) {
+            return new HtmlAsciiOutput(path, Shell.OUTPUT_FONT_NAME);
+        }
+        return new GzipHtmlAsciiOutput(path + GZIP_EXTENSION, Shell.OUTPUT_FONT_NAME, gzipLevel,
+                gzipInBackground);
+    }
+
+    /**
+     * Checks that no two inputs are written to the same output, which would happen for files of
+     * the same name in different directories or with different extensions, and logs every pair
+     * which would be
+     * @param inputFiles images or animations to render
+     * @return true if every input has an output name of its own
+     */
+    private static boolean hasDistinctOutputNames(List<File> inputFiles) {
+        Map<String, File> inputsByOutputName = new HashMap<>();
+        boolean distinct = true;
+        for (File inputFile : inputFiles) {
+            String outputName = getOutputName(inputFile);
+            File previous = inputsByOutputName.putIfAbsent(outputName, inputFile);
+            if (previous != null) {
+                Logger.getGlobal().severe(String.format(OUTPUT_COLLISION_MESSAGE, previous,
+                        inputFile, outputName));
+                distinct = false;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Returns the name of the output of a rendered image, its file name without the extension
+     * @param imageFile rendered image
+     * @return the output name
+     */
+    private static String getOutputName(File imageFile) {
+        String name = imageFile.getName();
+        int extensionStart = name.lastIndexOf(EXTENSION_SEPARATOR);
+        if (extensionStart > 0) {
+            name = name.substring(0, extensionStart);
+        }
+        return name;
+    }
+
+    /**
+     * Loads the glyph brightness index file if one was requested
+     * @return the loaded index, or a new empty index if no file was requested or the file
+     * could not be read
+     */
+    private GlyphBrightnessIndex loadBrightnessIndex() {
+        if (indexFile == null) {
+            return new GlyphBrightnessIndex();
+        }
+        return GlyphBrightnessIndex.loadOrCreate(Paths.get(indexFile));
+    }
+
+    /**
+     * Saves the glyph brightness index back to its file if new values were added to it
+     * @param brightnessIndex index to save
+     */
+    private void saveBrightnessIndex(GlyphBrightnessIndex brightnessIndex) {
+        if (indexFile == null || !brightnessIndex.isModified()) {
+            return;
+        }
+        Path indexPath = Paths.get(indexFile);
+        try {
+            brightnessIndex.save(indexPath);
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", indexPath));
+        }
+    }
+}
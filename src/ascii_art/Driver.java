@@ -8,7 +8,18 @@ import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class Driver {
+    static final String BATCH_FLAG = "--batch";
+    static final String SERVE_FLAG = "--serve";
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(BATCH_FLAG)) {
+            BatchRenderer.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals(SERVE_FLAG)) {
+            RenderServer.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args.length != 1) {
             System.err.println("USAGE: java asciiArt ");
             return;
@@ -20,4 +31,4 @@ public class Driver {
         }
         new Shell(img).run();
     }
-}
\ No newline at end of file
+}
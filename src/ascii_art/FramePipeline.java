@@ -0,0 +1,197 @@
+package ascii_art;
+
+import image.Image;
+import image.ImageFrames;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Renders the frames of an animation in three concurrent stages: a decoding thread, a pool of
+ * matching threads and the output on the calling thread. The stages are connected by bounded
+ * queues, so the next frames are decoded while the current ones are matched and written, and
+ * the number of frames held in memory at once is bounded. The matched frames are reordered before
+ * the output, so they are written in the order of the animation whatever the number of matching
+ * threads.
+ * @author Eliyahu Tamarkin
+ */
+class FramePipeline {
+    private static final Frame END_OF_FRAMES = new Frame(-1, null, null);
+
+    /**
+     * Writes the matched frames, called on the thread which runs the pipeline
+     */
+    interface FrameWriter {
+        /**
+         * Writes the next frame of the animation
+         * @param index index of the frame in the animation
+         * @param chars matched chars of the frame
+         */
+        void writeFrame(int index, char[][] chars);
+    }
+
+    /**
+     * A frame passed between the stages, holding its image until it is matched and its chars
+     * afterwards
+     */
+    private static class Frame {
+        private final int index;
+        private final Image image;
+        private final char[][] chars;
+
+        /**
+         * @param index index of the frame in the animation
+         * @param image decoded image of the frame, null once it was matched
+         * @param chars matched chars of the frame, null before it was matched or if matching it
+         *              failed
+         */
+        private Frame(int index, Image image, char[][] chars) {
+            this.index = index;
+            this.image = image;
+            this.chars = chars;
+        }
+    }
+
+    private final int queueCapacity;
+    private final int numMatchers;
+    private final Function<Image, char[][]> matcher;
+    private final FrameWriter writer;
+
+    /**
+     * Constructs a new FramePipeline instance
+     * @param queueCapacity number of frames each queue between two stages holds
+     * @param numMatchers number of matching threads
+     * @param matcher matches the chars of a frame, called concurrently from the matching threads
+     * @param writer writes the matched frames in order
+     */
+    FramePipeline(int queueCapacity, int numMatchers, Function<Image, char[][]> matcher,
+                  FrameWriter writer) {
+        if (queueCapacity < 1 || numMatchers < 1) {
+            throw new IllegalArgumentException("queue capacity and matchers must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+        this.numMatchers = numMatchers;
+        this.matcher = matcher;
+        this.writer = writer;
+    }
+
+    /**
+     * Renders all the frames, and returns once the last one was written. A frame which fails
+     * to be decoded ends the animation, a frame which fails to be matched is skipped.
+     * @param frames frames of the animation, read only by the decoding thread
+     * @return the number of frames written
+     * @throws InterruptedException in case the calling thread was interrupted, the other stages
+     * are stopped as well
+     */
+    int run(ImageFrames frames) throws InterruptedException {
+        BlockingQueue<Frame> decodedFrames = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Frame> matchedFrames = new ArrayBlockingQueue<>(queueCapacity);
+        // frames waiting for an earlier frame are not in any queue, so the frames between
+        // decoding and writing are counted instead
+        Semaphore framesInFlight = new Semaphore(2 * queueCapacity + numMatchers);
+        ExecutorService stages = Executors.newFixedThreadPool(numMatchers + 1);
+        try {
+            stages.execute(() -> decodeFrames(frames, decodedFrames, framesInFlight));
+            for (int i = 0; i < numMatchers; i++) {
+                stages.execute(() -> matchFrames(decodedFrames, matchedFrames));
+            }
+            return writeFrames(matchedFrames, framesInFlight);
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Decoding stage, reads the frames in order and ends the stream with an end marker for
+     * every matching thread
+     * @param frames frames of the animation
+     * @param decodedFrames queue of the decoded frames
+     * @param framesInFlight permits for the frames between decoding and writing
+     */
+    private void decodeFrames(ImageFrames frames, BlockingQueue<Frame> decodedFrames,
+                              Semaphore framesInFlight) {
+        try {
+            try {
+                for (int index = 0; ; index++) {
+                    framesInFlight.acquire();
+                    Image image = frames.readNext();
+                    if (image == null) {
+                        break;
+                    }
+                    decodedFrames.put(new Frame(index, image, null));
+                }
+            } catch (IOException | RuntimeException e) {
+                Logger.getGlobal().severe("Failed to decode frame: " + e);
+            }
+            for (int i = 0; i < numMatchers; i++) {
+                decodedFrames.put(END_OF_FRAMES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Matching stage, matches decoded frames until it takes an end marker and passes it on
+     * @param decodedFrames queue of the decoded frames
+     * @param matchedFrames queue of the matched frames, in the order they were matched
+     */
+    private void matchFrames(BlockingQueue<Frame> decodedFrames,
+                             BlockingQueue<Frame> matchedFrames) {
+        try {
+            for (Frame frame = decodedFrames.take(); frame != END_OF_FRAMES;
+                 frame = decodedFrames.take()) {
+                char[][] chars = null;
+                try {
+                    chars = matcher.apply(frame.image);
+                } catch (RuntimeException e) {
+                    Logger.getGlobal().severe("Failed to match frame " + frame.index + ": " + e);
+                }
+                matchedFrames.put(new Frame(frame.index, null, chars));
+            }
+            matchedFrames.put(END_OF_FRAMES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Output stage, writes every matched frame once all the frames before it were written
+     * @param matchedFrames queue of the matched frames
+     * @param framesInFlight permits for the frames between decoding and writing
+     * @return the number of frames written
+     * @throws InterruptedException in case the calling thread was interrupted
+     */
+    private int writeFrames(BlockingQueue<Frame> matchedFrames, Semaphore framesInFlight)
+            throws InterruptedException {
+        Map<Integer, Frame> waitingFrames = new HashMap<>();
+        int nextIndex = 0;
+        int numWritten = 0;
+        for (int numEnded = 0; numEnded < numMatchers; ) {
+            Frame frame = matchedFrames.take();
+            if (frame == END_OF_FRAMES) {
+                numEnded++;
+                continue;
+            }
+            waitingFrames.put(frame.index, frame);
+            for (Frame next = waitingFrames.remove(nextIndex); next != null;
+                 next = waitingFrames.remove(nextIndex)) {
+                if (next.chars != null) {
+                    writer.writeFrame(nextIndex, next.chars);
+                    numWritten++;
+                }
+                nextIndex++;
+                framesInFlight.release();
+            }
+        }
+        return numWritten;
+    }
+}
@@ -0,0 +1,121 @@
+package ascii_art;
+
+import ascii_art.img_to_char.CharSet;
+import ascii_art.img_to_char.ImgCharMatcher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Least recently used cache of rendered images, keyed by the matcher, which holds the image, the
+ * char set and the number of chars in a row. The cache holds at most a fixed number of bytes of
+ * chars, evicting the least recently used renders first.
+ * @author Eliyahu Tamarkin
+ */
+class RenderCache {
+    private static final int ROW_OVERHEAD_BYTES = 16;
+
+    private final long maxBytes;
+    private final LinkedHashMap<RenderKey, char[][]> renders = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * Constructs a new RenderCache instance
+     * @param maxBytes maximal size of all the cached renders together
+     */
+    RenderCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns whether a render of the given size may be cached at all
+     * @param numRows number of rows in the render
+     * @param numCols number of chars in each row
+     * @return true if the render is not larger than the whole cache
+     */
+    boolean fits(int numRows, int numCols) {
+        return getSizeInBytes(numRows, numCols) <= maxBytes;
+    }
+
+    /**
+     * Returns a cached render
+     * @param matcher the matcher which rendered the image
+     * @param charSet char set used for the render
+     * @param charsInRow number of chars in each row of the render
+     * @return the cached render, or null if it is not cached. The render must not be modified.
+     */
+    char[][] get(ImgCharMatcher matcher, CharSet charSet, int charsInRow) {
+        return renders.get(new RenderKey(matcher, charSet, charsInRow));
+    }
+
+    /**
+     * Caches a render, evicting the least recently used renders as needed
+     * @param matcher the matcher which rendered the image
+     * @param charSet char set used for the render, the cache keeps a copy of it
+     * @param charsInRow number of chars in each row of the render
+     * @param chars the render, which must not be modified afterwards
+     */
+    void put(ImgCharMatcher matcher, CharSet charSet, int charsInRow, char[][] chars) {
+        long size = getSizeInBytes(chars.length, charsInRow);
+        if (size > maxBytes) {
+            return;
+        }
+        char[][] previous = renders.put(new RenderKey(matcher, new CharSet(charSet), charsInRow),
+                chars);
+        if (previous != null) {
+            cachedBytes -= getSizeInBytes(previous.length, charsInRow);
+        }
+        cachedBytes += size;
+        Iterator<Map.Entry<RenderKey, char[][]>> eldest = renders.entrySet().iterator();
+        while (cachedBytes > maxBytes) {
+            Map.Entry<RenderKey, char[][]> entry = eldest.next();
+            cachedBytes -= getSizeInBytes(entry.getValue().length, entry.getKey().charsInRow);
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Estimates the memory used by a render
+     * @param numRows number of rows in the render
+     * @param numCols number of chars in each row
+     * @return the size in bytes
+     */
+    private static long getSizeInBytes(int numRows, int numCols) {
+        return (long) numRows * ((long) numCols * Character.BYTES + ROW_OVERHEAD_BYTES);
+    }
+
+    /**
+     * Key of a single render in the cache, matchers are compared by identity
+     */
+    private static final class RenderKey {
+        private final ImgCharMatcher matcher;
+        private final CharSet charSet;
+        private final int charsInRow;
+
+        RenderKey(ImgCharMatcher matcher, CharSet charSet, int charsInRow) {
+            this.matcher = matcher;
+            this.charSet = charSet;
+            this.charsInRow = charsInRow;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) o;
+            return matcher == other.matcher && charsInRow == other.charsInRow &&
+                    charSet.equals(other.charSet);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(matcher), charSet, charsInRow);
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package ascii_art;
+
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.CharSet;
+import ascii_art.img_to_char.GlyphBrightnessIndex;
+import ascii_art.img_to_char.ImgCharMatcher;
+import ascii_art.img_to_char.ShapeImgCharMatcher;
+import ascii_output.AsciiRowWriter;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Image;
+import image.StreamingImage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Local HTTP service which renders uploaded images, so the JVM, AWT and the glyph brightness
+ * values are only warmed up once for all the requests. An image is rendered by POSTing its file
+ * to /render, with the char set, resolution, output format and matcher as query parameters.
+ * The chars are limited to the printable ASCII chars, whose glyphs are all rendered at startup.
+ * Uploads are written to temporary files, and only a bounded number of images is decoded and
+ * rendered at once. Every render also takes a share of a memory budget derived from the heap,
+ * estimated from the image's dimensions before it is decoded, so a burst of large images is
+ * answered with 503 responses instead of running out of memory.
+ * @author Eliyahu Tamarkin
+ */
+class RenderServer {
+    private static final String USAGE = "USAGE: java ascii_art.Driver " + Driver.SERVE_FLAG +
+            " [--port <port>] [--threads <n>] [--max-pixels <n>] [--index <file>]";
+    private static final String REQUEST_USAGE = "USAGE: POST /render" +
+            "[?chars=<range in ' '-'~'>]...[&res=<chars in row>][&format=html|console]" +
+            "[&matcher=brightness|shape]" +
+            " with the image file as the body\n";
+
+    // option names
+    private static final String PORT_OPTION = "--port";
+    private static final String THREADS_OPTION = "--threads";
+    private static final String MAX_PIXELS_OPTION = "--max-pixels";
+    private static final String INDEX_OPTION = "--index";
+
+    // request constants
+    private static final String RENDER_PATH = "/render";
+    private static final String POST = "POST";
+    private static final String CHARS_PARAM = "chars";
+    private static final String RES_PARAM = "res";
+    private static final String FORMAT_PARAM = "format";
+    private static final String MATCHER_PARAM = "matcher";
+    private static final String HTML = "html";
+    private static final String CONSOLE = "console";
+    private static final String PARAM_SEPARATOR = "&";
+    private static final String VALUE_SEPARATOR = "=";
+    private static final String ALL_CHARS = "all";
+
+    // response constants
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int NOT_FOUND = 404;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int INTERNAL_SERVER_ERROR = 500;
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final int NO_RESPONSE_YET = -1;
+    private static final long CHUNKED_LENGTH = 0;
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String ALLOW = "Allow";
+    private static final String TEXT_TYPE = "text/plain; charset=utf-8";
+    private static final String HTML_TYPE = "text/html; charset=utf-8";
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final String LISTENING_MESSAGE = "Listening on http://localhost:%d%s%n";
+    private static final String BUSY_MESSAGE = "Too many images are being rendered\n";
+    private static final String UPLOAD_TOO_LARGE_MESSAGE = "Uploads are limited to %d bytes\n";
+    private static final String IMAGE_TOO_LARGE_MESSAGE = "Images are limited to %d pixels\n";
+    private static final String IMAGE_OVER_BUDGET_MESSAGE =
+            "The image needs more memory to render than the server has\n";
+    private static final String BAD_IMAGE_MESSAGE = "The body is not a supported image\n";
+    private static final String RENDER_FAILED_MESSAGE = "Failed to render the image\n";
+
+    // limits
+    private static final int DEFAULT_PORT = 8080;
+    private static final long DEFAULT_MAX_PIXELS = 1L << 26;
+    private static final long MAX_UPLOAD_BYTES = 64L << 20;
+    private static final int HANDLERS_PER_RENDER = 2;
+    private static final long RENDER_WAIT_MILLIS = 2000;
+    private static final long NANOS_IN_MILLI = 1_000_000;
+    // share of the maximal heap the renders may use together
+    private static final double RENDER_HEAP_FRACTION = 0.5;
+    // the decoded image and its packed copy, 4 bytes each
+    private static final long BYTES_PER_ORIGINAL_PIXEL = 8;
+    // a table of long grey value sums over the padded image, either the summed-area table or the
+    // finest level of the brightness pyramid
+    private static final long BYTES_PER_PADDED_PIXEL = 8;
+    private static final long BYTES_PER_MEMORY_PERMIT = 1L << 20;
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+    private static final String UPLOAD_PREFIX = "ascii_art";
+    private static final String UPLOAD_SUFFIX = ".upload";
+
+    private int port = DEFAULT_PORT;
+    private int maxRenders = Runtime.getRuntime().availableProcessors();
+    private long maxPixels = DEFAULT_MAX_PIXELS;
+    private String indexFile;
+    private GlyphBrightnessIndex brightnessIndex;
+    private Semaphore renderPermits;
+    private Semaphore memoryPermits;
+    private int numMemoryPermits;
+
+    /**
+     * Parses the arguments, warms up the glyph brightness values and serves requests until the
+     * process is stopped
+     * @param args server mode arguments, without the server flag itself
+     */
+    static void run(String[] args) {
+        RenderServer server = new RenderServer();
+        if (!server.parseArguments(args)) {
+            System.err.println(USAGE);
+            return;
+        }
+        server.start();
+    }
+
+    /**
+     * Parses the command line arguments into the server's settings
+     * @param args server mode arguments
+     * @return true if the arguments are valid and false otherwise
+     */
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case PORT_OPTION:
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case THREADS_OPTION:
+                        maxRenders = Integer.parseInt(args[++i]);
+                        break;
+                    case MAX_PIXELS_OPTION:
+                        maxPixels = Long.parseLong(args[++i]);
+                        break;
+                    case INDEX_OPTION:
+                        indexFile = args[++i];
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        return maxRenders > 0 && maxPixels > 0;
+    }
+
+    /**
+     * Fills the shared glyph brightness values of every char of the "all" range, and starts
+     * the HTTP server. The handler threads are twice as many as the renders allowed at once,
+     * so uploads can be received while the allowed renders run.
+     */
+    private void start() {
+        brightnessIndex = indexFile == null ? new GlyphBrightnessIndex() :
+                GlyphBrightnessIndex.loadOrCreate(Paths.get(indexFile));
+        char[] allChars = Shell.getCharRange(ALL_CHARS);
+        CharSet warmChars = new CharSet();
+        warmChars.addRange(allChars[0], allChars[1]);
+        BrightnessImgCharMatcher.fillBrightnessIndex(brightnessIndex, Shell.OUTPUT_FONT_NAME,
+                warmChars);
+        saveBrightnessIndex();
+        renderPermits = new Semaphore(maxRenders);
+        numMemoryPermits = (int) Math.min(Integer.MAX_VALUE,
+                (long) (Runtime.getRuntime().maxMemory() * RENDER_HEAP_FRACTION) /
+                        BYTES_PER_MEMORY_PERMIT);
+        // fair, so a large render is not passed over by a stream of small ones until it times out
+        memoryPermits = new Semaphore(numMemoryPermits, true);
+
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        server.createContext(RENDER_PATH, this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(maxRenders * HANDLERS_PER_RENDER));
+        server.start();
+        System.err.printf(LISTENING_MESSAGE, server.getAddress().getPort(), RENDER_PATH);
+    }
+
+    /**
+     * Handles a single request, every failure is answered with an error status and a message
+     * @param exchange request and response
+     */
+    private void handle(HttpExchange exchange) {
+        Path upload = null;
+        try {
+            if (!exchange.getRequestURI().getPath().equals(RENDER_PATH)) {
+                sendMessage(exchange, NOT_FOUND, REQUEST_USAGE);
+                return;
+            }
+            if (!exchange.getRequestMethod().equals(POST)) {
+                exchange.getResponseHeaders().set(ALLOW, POST);
+                sendMessage(exchange, METHOD_NOT_ALLOWED, REQUEST_USAGE);
+                return;
+            }
+            RenderRequest request = RenderRequest.parse(exchange.getRequestURI().getRawQuery());
+            if (request == null) {
+                sendMessage(exchange, BAD_REQUEST, REQUEST_USAGE);
+                return;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst(CONTENT_LENGTH);
+            if (contentLength != null && Long.parseLong(contentLength) > MAX_UPLOAD_BYTES) {
+                sendMessage(exchange, PAYLOAD_TOO_LARGE,
+                        String.format(UPLOAD_TOO_LARGE_MESSAGE, MAX_UPLOAD_BYTES));
+                return;
+            }
+            upload = Files.createTempFile(UPLOAD_PREFIX, UPLOAD_SUFFIX);
+            if (!receiveUpload(exchange.getRequestBody(), upload)) {
+                sendMessage(exchange, PAYLOAD_TOO_LARGE,
+                        String.format(UPLOAD_TOO_LARGE_MESSAGE, MAX_UPLOAD_BYTES));
+                return;
+            }
+            // the dimensions are read from the header of the file, so images which are too large
+            // are never decoded
+            int neededMemoryPermits;
+            try (StreamingImage header = StreamingImage.open(upload.toString())) {
+                if (header.getNumOriginalPixels() > maxPixels) {
+                    sendMessage(exchange, PAYLOAD_TOO_LARGE,
+                            String.format(IMAGE_TOO_LARGE_MESSAGE, maxPixels));
+                    return;
+                }
+                neededMemoryPermits = getMemoryPermits(header);
+            } catch (IOException e) {
+                sendMessage(exchange, BAD_REQUEST, BAD_IMAGE_MESSAGE);
+                return;
+            }
+            if (neededMemoryPermits > numMemoryPermits) {
+                sendMessage(exchange, PAYLOAD_TOO_LARGE, IMAGE_OVER_BUDGET_MESSAGE);
+                return;
+            }
+            long waitEnd = System.nanoTime() + RENDER_WAIT_MILLIS * NANOS_IN_MILLI;
+            if (!renderPermits.tryAcquire(RENDER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                sendBusy(exchange);
+                return;
+            }
+            try {
+                if (!memoryPermits.tryAcquire(neededMemoryPermits, waitEnd - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    sendBusy(exchange);
+                    return;
+                }
+                try {
+                    render(exchange, upload, request);
+                } finally {
+                    memoryPermits.release(neededMemoryPermits);
+                }
+            } finally {
+                renderPermits.release();
+            }
+        } catch (NumberFormatException e) {
+            sendMessage(exchange, BAD_REQUEST, REQUEST_USAGE);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to serve a render request: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // a failure of decoding or matching, which would otherwise drop the connection
+            Logger.getGlobal().severe("Failed to render a request: " + e);
+            if (exchange.getResponseCode() == NO_RESPONSE_YET) {
+                sendMessage(exchange, INTERNAL_SERVER_ERROR, RENDER_FAILED_MESSAGE);
+            }
+        } finally {
+            if (upload != null) {
+                try {
+                    Files.deleteIfExists(upload);
+                } catch (IOException e) {
+                    Logger.getGlobal().severe("Failed to delete " + upload);
+                }
+            }
+            exchange.close();
+        }
+    }
+
+    /**
+     * Estimates the memory a render of an image takes from its dimensions, rounded up to whole
+     * permits of the memory budget
+     * @param header opened image, of which only the header was read
+     * @return the number of memory permits the render needs
+     */
+    private static int getMemoryPermits(StreamingImage header) {
+        long renderBytes = header.getNumOriginalPixels() * BYTES_PER_ORIGINAL_PIXEL +
+                (long) header.getWidth() * header.getHeight() * BYTES_PER_PADDED_PIXEL;
+        return (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, (renderBytes + BYTES_PER_MEMORY_PERMIT - 1) / BYTES_PER_MEMORY_PERMIT));
+    }
+
+    /**
+     * Answers that the request waited too long for a render, and may be sent again later
+     * @param exchange request and response
+     */
+    private static void sendBusy(HttpExchange exchange) {
+        exchange.getResponseHeaders().set(RETRY_AFTER, RETRY_AFTER_SECONDS);
+        sendMessage(exchange, SERVICE_UNAVAILABLE, BUSY_MESSAGE);
+    }
+
+    /**
+     * Copies the request body to a file, up to MAX_UPLOAD_BYTES
+     * @param body request body
+     * @param upload file to copy the body to
+     * @return true if the whole body was copied and false if it is too large
+     * @throws IOException in case reading the body or writing the file failed
+     */
+    private static boolean receiveUpload(InputStream body, Path upload) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long numBytes = 0;
+        try (OutputStream out = Files.newOutputStream(upload)) {
+            for (int length = body.read(buffer); length >= 0; length = body.read(buffer)) {
+                numBytes += length;
+                if (numBytes > MAX_UPLOAD_BYTES) {
+                    return false;
+                }
+                out.write(buffer, 0, length);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes an uploaded image and sends its rendering
+     * @param exchange request and response
+     * @param upload file of the uploaded image, whose dimensions were already checked
+     * @param request parameters of the render
+     * @throws IOException in case the response could not be sent
+     */
+    private void render(HttpExchange exchange, Path upload, RenderRequest request)
+            throws IOException {
+        Image img = Image.fromFile(upload.toString());
+        if (img == null) {
+            sendMessage(exchange, BAD_REQUEST, BAD_IMAGE_MESSAGE);
+            return;
+        }
+        ImgCharMatcher charMatcher = request.matcherName.equals(Shell.SHAPE_MATCHER) ?
+                new ShapeImgCharMatcher(img, Shell.OUTPUT_FONT_NAME) :
+                new BrightnessImgCharMatcher(img, Shell.OUTPUT_FONT_NAME, 1, brightnessIndex);
+        int charsInRow = BatchRenderer.fitCharsInRow(request.charsInRow, img.getWidth(),
+                img.getHeight());
+
+        boolean html = request.format.equals(HTML);
+        exchange.getResponseHeaders().set(CONTENT_TYPE, html ? HTML_TYPE : TEXT_TYPE);
+        exchange.sendResponseHeaders(OK, CHUNKED_LENGTH);
+        OutputStream body = exchange.getResponseBody();
+        if (html) {
+            HtmlAsciiOutput htmlOutput = new HtmlAsciiOutput(Channels.newChannel(body),
+                    Shell.OUTPUT_FONT_NAME);
+            try (AsciiRowWriter writer = htmlOutput.openRows(charsInRow)) {
+                charMatcher.chooseChars(charsInRow, request.chars, writer::writeRow);
+            }
+        }
+        else {
+            PrintStream out = new PrintStream(body, false, StandardCharsets.UTF_8.name());
+            new ConsoleAsciiOutput(out).output(charMatcher.chooseChars(charsInRow, request.chars));
+            out.close();
+        }
+    }
+
+    /**
+     * Sends a response which only holds a text message
+     * @param exchange request and response
+     * @param status status code of the response
+     * @param message text of the response
+     */
+    private static void sendMessage(HttpExchange exchange, int status, String message) {
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set(CONTENT_TYPE, TEXT_TYPE);
+            exchange.sendResponseHeaders(status, messageBytes.length);
+            exchange.getResponseBody().write(messageBytes);
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to send a response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the glyph brightness index back to its file if new values were added to it
+     */
+    private void saveBrightnessIndex() {
+        if (indexFile == null || !brightnessIndex.isModified()) {
+            return;
+        }
+        try {
+            brightnessIndex.save(Paths.get(indexFile));
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", indexFile));
+        }
+    }
+
+    /**
+     * The parameters of a single render request
+     */
+    private static final class RenderRequest {
+        private final CharSet chars = new CharSet();
+        private int charsInRow = Shell.INITIAL_CHARS_IN_ROW;
+        private String format = CONSOLE;
+        private String matcherName = Shell.BRIGHTNESS_MATCHER;
+
+        /**
+         * Parses the query of a request, chars may be given more than once and are added up
+         * @param rawQuery query of the request URI, still URL encoded, may be null
+         * @return the parameters, or null if they are not valid
+         */
+        static RenderRequest parse(String rawQuery) {
+            RenderRequest request = new RenderRequest();
+            Map<String, List<String>> params = parseQuery(rawQuery);
+            if (params == null) {
+                return null;
+            }
+            // only the warm chars are accepted, so a request never renders glyphs or grows the
+            // shared brightness values
+            char[] warmRange = Shell.getCharRange(ALL_CHARS);
+            for (String range : params.getOrDefault(CHARS_PARAM, new ArrayList<>())) {
+                char[] charRange = Shell.getCharRange(range);
+                if (charRange.length == 0 || charRange[0] < warmRange[0] ||
+                        charRange[1] > warmRange[1]) {
+                    return null;
+                }
+                request.chars.addRange(charRange[0], charRange[1]);
+            }
+            if (request.chars.isEmpty()) {
+                for (char c : Shell.INITIAL_CHARACTERS) {
+                    request.chars.add(c);
+                }
+            }
+            try {
+                if (params.containsKey(RES_PARAM)) {
+                    request.charsInRow = Integer.parseInt(params.get(RES_PARAM).get(0));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (params.containsKey(FORMAT_PARAM)) {
+                request.format = params.get(FORMAT_PARAM).get(0);
+            }
+            if (params.containsKey(MATCHER_PARAM)) {
+                request.matcherName = params.get(MATCHER_PARAM).get(0);
+            }
+            boolean validFormat = request.format.equals(HTML) || request.format.equals(CONSOLE);
+            boolean validMatcher = request.matcherName.equals(Shell.BRIGHTNESS_MATCHER) ||
+                    request.matcherName.equals(Shell.SHAPE_MATCHER);
+            return Integer.bitCount(request.charsInRow) == 1 && validFormat && validMatcher ?
+                    request : null;
+        }
+
+        /**
+         * Splits a query into its decoded parameters
+         * @param rawQuery query of the request URI, still URL encoded, may be null
+         * @return the values of each parameter in order, or null if the query is not valid
+         */
+        private static Map<String, List<String>> parseQuery(String rawQuery) {
+            Map<String, List<String>> params = new HashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return params;
+            }
+            try {
+                for (String param : rawQuery.split(PARAM_SEPARATOR)) {
+                    int separator = param.indexOf(VALUE_SEPARATOR);
+                    if (separator < 0) {
+                        return null;
+                    }
+                    String name = URLDecoder.decode(param.substring(0, separator),
+                            StandardCharsets.UTF_8.name());
+                    String value = URLDecoder.decode(param.substring(separator + 1),
+                            StandardCharsets.UTF_8.name());
+                    params.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+                }
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return null;
+            }
+            return params;
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package ascii_art;
 
 import java.util.*;
-import java.util.stream.IntStream;
 
 import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.CharSet;
+import ascii_art.img_to_char.ImgCharMatcher;
+import ascii_art.img_to_char.ShapeImgCharMatcher;
 import ascii_output.AsciiOutput;
+import ascii_output.AsciiRowWriter;
 import ascii_output.ConsoleAsciiOutput;
+import ascii_output.DiffConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
 import image.Image;
+import render_stats.RenderStats;
 
 /**
  * Shell class giving options to control our char set used for the image rendering and
@@ -15,10 +20,12 @@ import image.Image;
  * @author Eliyahu Tamarkin
  */
 class Shell {
-    private static final Character[] INITIAL_CHARACTERS = {'0', '1', '2', '3', '4', '5',
+    static final char[] INITIAL_CHARACTERS = {'0', '1', '2', '3', '4', '5',
             '6', '7', '8', '9'};
-    private static final int INITIAL_CHARS_IN_ROW = 64;
-    private static final int MIN_PIXELS_PER_CHAR = 2;
+    static final int INITIAL_CHARS_IN_ROW = 64;
+    static final int MIN_PIXELS_PER_CHAR = 2;
+    private static final int MATCHING_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final long RENDER_CACHE_BYTES = 64L << 20;
 
     // general input constants
     private static final String INPUT_COMMAND = ">>> ";
@@ -52,24 +59,50 @@ class Shell {
 
     // render constants
     private static final String CONSOLE_COMMAND = "console";
+    private static final String DIFF = "diff";
     private static final String RENDER_COMMAND = "render";
     private static final String HTML = "html";
     private static final String OUTPUT_NAME = "out.html";
-    private static final String OUTPUT_FONT_NAME = "Courier New";
+    static final String OUTPUT_FONT_NAME = "Courier New";
+
+    // matcher constants
+    private static final String MATCHER_COMMAND = "matcher";
+    static final String BRIGHTNESS_MATCHER = "brightness";
+    static final String SHAPE_MATCHER = "shape";
+
+    // color constants
+    private static final String COLOR_COMMAND = "color";
+    private static final String ON = "on";
+    private static final String OFF = "off";
+
+    // stats constants
+    private static final String STATS_COMMAND = "stats";
+    private static final String JSON = "json";
+    private static final String RESET = "reset";
 
     // exit constants
     private static final String EXIT_COMMAND = "exit";
 
     // class variables
     private final Scanner sc = new Scanner(System.in);
-    private final HashSet<Character> availableChars;
+    private final CharSet availableChars;
     private final int minCharsInRow;
     private final int maxCharsInRow;
     private int charsInRow;
     private String outputTo = HTML;
-    private final AsciiOutput htmlOutput;
+    private final HtmlAsciiOutput htmlOutput;
     private final ConsoleAsciiOutput consoleOutput;
-    private final BrightnessImgCharMatcher charMatcher;
+    private final DiffConsoleAsciiOutput diffConsoleOutput;
+    private boolean diffConsole;
+    private final BrightnessImgCharMatcher brightnessMatcher;
+    private ShapeImgCharMatcher shapeMatcher;
+    private ImgCharMatcher charMatcher;
+    private final Image img;
+    private final RenderCache renderCache;
+    private boolean colored;
+    // colors of the sub images of the last colored render and its resolution
+    private int[][] tileColors;
+    private int tileColorsCharsInRow;
 
 
     /**
@@ -77,14 +110,18 @@ class Shell {
      * @param img to be parsed into ascii art
      */
     public Shell(Image img){
-        this.availableChars = new HashSet<>();
-        this.availableChars.addAll(Arrays.asList(INITIAL_CHARACTERS));
+        this.availableChars = CharSet.of(INITIAL_CHARACTERS);
         this.minCharsInRow = Math.max(1, img.getWidth() / img.getHeight());
         this.maxCharsInRow = img.getWidth() / MIN_PIXELS_PER_CHAR;
         this.charsInRow = Math.max(Math.min(INITIAL_CHARS_IN_ROW, maxCharsInRow), minCharsInRow);
         this.htmlOutput = new HtmlAsciiOutput(OUTPUT_NAME, OUTPUT_FONT_NAME);
         this.consoleOutput = new ConsoleAsciiOutput();
-        this.charMatcher = new BrightnessImgCharMatcher(img, OUTPUT_FONT_NAME);
+        this.diffConsoleOutput = new DiffConsoleAsciiOutput();
+        this.brightnessMatcher = new BrightnessImgCharMatcher(img, OUTPUT_FONT_NAME,
+                MATCHING_PARALLELISM);
+        this.charMatcher = brightnessMatcher;
+        this.img = img;
+        this.renderCache = new RenderCache(RENDER_CACHE_BYTES);
     }
 
     /**
@@ -117,6 +154,15 @@ class Shell {
                 case RENDER_COMMAND:
                     handleRenderCommand(userInputWords);
                     break;
+                case MATCHER_COMMAND:
+                    handleMatcherCommand(userInputWords);
+                    break;
+                case STATS_COMMAND:
+                    handleStatsCommand(userInputWords);
+                    break;
+                case COLOR_COMMAND:
+                    handleColorCommand(userInputWords);
+                    break;
                 case EXIT_COMMAND:
                     if (userInputWords.length == 1){
                         return;
@@ -136,7 +182,9 @@ class Shell {
     private void handlePrintChars(String[] userInputWords){
         if (checkValidNumberOfArguments(userInputWords, 1)){
             StringJoiner joiner = new StringJoiner(PRINT_CHARS_DELIMITER);
-            availableChars.forEach(item -> joiner.add(item.toString()));
+            for (char c : availableChars.toCharArray()) {
+                joiner.add(String.valueOf(c));
+            }
             System.out.println(joiner);
             return;
         }
@@ -201,12 +249,18 @@ class Shell {
     }
 
     /**
-     * Handles the users request to change the output format of the given image
+     * Handles the users request to change the output format of the given image. With "console diff"
+     * every render is drawn over the previous one, and only the chars which changed are printed.
      * @param userInputWords the user words which were typed
      */
     private void handleConsoleCommand(String[] userInputWords, String command){
-        if (checkValidNumberOfArguments(userInputWords, 1)){
+        boolean diff = checkValidNumberOfArguments(userInputWords, 2) &&
+                userInputWords[1].equals(DIFF);
+        if (checkValidNumberOfArguments(userInputWords, 1) || diff){
             this.outputTo = command;
+            this.diffConsole = diff;
+            // the screen was scrolled by the commands since, so the first render is drawn whole
+            diffConsoleOutput.reset();
             return;
         }
         System.out.println(WRONG_COMMAND_MESSAGE);
@@ -214,22 +268,120 @@ class Shell {
 
     /**
      * Handles the users request to render the given image with the chars and resolution decided in
-     * the previous actions
+     * the previous actions. Recent renders are cached, so rendering again with the same chars and
+     * resolution only outputs the cached render. The colors of a colored render do not depend on
+     * the chars, so they are kept until the resolution changes.
      * @param userInputWords the user words which were typed
      */
     private void handleRenderCommand(String[] userInputWords){
         if (checkValidNumberOfArguments(userInputWords, 1)){
-            Character[] charsArray = new Character[availableChars.size()];
-            availableChars.toArray(charsArray);
-            char[][] selectedChars = charMatcher.chooseChars(charsInRow, charsArray);
-            if (outputTo.equals(HTML)){
-                htmlOutput.output(selectedChars);
+            int[][] colors = null;
+            if (colored){
+                if (tileColors == null || tileColorsCharsInRow != charsInRow){
+                    tileColors = charMatcher.chooseColors(charsInRow);
+                    tileColorsCharsInRow = charsInRow;
+                }
+                colors = tileColors;
+            }
+            char[][] selectedChars = renderCache.get(charMatcher, availableChars, charsInRow);
+            if (selectedChars == null){
+                int charsInCol = img.getHeight() / (img.getWidth() / charsInRow);
+                if (outputTo.equals(HTML) && !renderCache.fits(charsInCol, charsInRow)){
+                    // too large to keep, so the rows are written as soon as they are matched
+                    try (AsciiRowWriter writer = htmlOutput.openRows(charsInRow)) {
+                        writeRows(writer, colors);
+                    }
+                    return;
+                }
+                selectedChars = charMatcher.chooseChars(charsInRow, availableChars);
+                renderCache.put(charMatcher, availableChars, charsInRow, selectedChars);
+            }
+            AsciiOutput output = outputTo.equals(HTML) ? htmlOutput :
+                    diffConsole ? diffConsoleOutput : consoleOutput;
+            if (colors != null){
+                output.output(selectedChars, colors);
             }
             else {
-                consoleOutput.output(selectedChars);
+                output.output(selectedChars);
+            }
+            return;
+        }
+        System.out.println(WRONG_COMMAND_MESSAGE);
+    }
+
+    /**
+     * Matches the rows of the image and writes each one as soon as it is matched
+     * @param writer writer of the rows
+     * @param colors colors of the sub images, or null for an output without colors
+     */
+    private void writeRows(AsciiRowWriter writer, int[][] colors){
+        if (colors == null){
+            charMatcher.chooseChars(charsInRow, availableChars, writer::writeRow);
+            return;
+        }
+        int[] nextRow = {0};
+        charMatcher.chooseChars(charsInRow, availableChars,
+                row -> writer.writeRow(row, colors[nextRow[0]++]));
+    }
+
+    /**
+     * Handles the users request to turn the colors of the output on or off
+     * @param userInputWords the user words which were typed
+     */
+    private void handleColorCommand(String[] userInputWords){
+        if (checkValidNumberOfArguments(userInputWords, 2)){
+            if (userInputWords[1].equals(ON) || userInputWords[1].equals(OFF)){
+                colored = userInputWords[1].equals(ON);
+                return;
+            }
+        }
+        System.out.println(WRONG_COMMAND_MESSAGE);
+    }
+
+    /**
+     * Handles the users request to choose how characters are matched to the image, either by
+     * brightness alone or by the shapes of the glyphs
+     * @param userInputWords the user words which were typed
+     */
+    private void handleMatcherCommand(String[] userInputWords){
+        if (checkValidNumberOfArguments(userInputWords, 2)){
+            if (userInputWords[1].equals(BRIGHTNESS_MATCHER)){
+                charMatcher = brightnessMatcher;
+                return;
             }
+            if (userInputWords[1].equals(SHAPE_MATCHER)){
+                if (shapeMatcher == null){
+                    shapeMatcher = new ShapeImgCharMatcher(img, OUTPUT_FONT_NAME,
+                            MATCHING_PARALLELISM);
+                }
+                charMatcher = shapeMatcher;
+                return;
+            }
+        }
+        System.out.println(WRONG_COMMAND_MESSAGE);
+    }
+
+    /**
+     * Handles the users request to print the timing statistics of the render stages, either as
+     * a table, as JSON, or to reset them
+     * @param userInputWords the user words which were typed
+     */
+    private void handleStatsCommand(String[] userInputWords){
+        RenderStats stats = RenderStats.getInstance();
+        if (checkValidNumberOfArguments(userInputWords, 1)){
+            System.out.println(stats.toSummary());
             return;
         }
+        if (checkValidNumberOfArguments(userInputWords, 2)){
+            if (userInputWords[1].equals(JSON)){
+                System.out.println(stats.toJson());
+                return;
+            }
+            if (userInputWords[1].equals(RESET)){
+                stats.reset();
+                return;
+            }
+        }
         System.out.println(WRONG_COMMAND_MESSAGE);
     }
 
@@ -260,9 +412,9 @@ class Shell {
     /**
      * Parses the user input to an array of chars representing the requested range.
      * @param charRangeSpecifier user input for the char range
-     * @return the char range
+     * @return the char range, or an empty array if the input is not a valid range
      */
-    private char[] getCharRange(String charRangeSpecifier){
+    static char[] getCharRange(String charRangeSpecifier){
         if (charRangeSpecifier.equals(ALL)){
             return new char[]{MIN_CHAR, MAX_CHAR};
         }
@@ -287,8 +439,7 @@ class Shell {
      * @param charRange range of chars to add
      */
     private void addCharsByRange(char[] charRange){
-        IntStream.rangeClosed(charRange[0], charRange[1]).forEach(charToAdd ->
-                availableChars.add((char)charToAdd));
+        availableChars.addRange(charRange[0], charRange[1]);
     }
 
     /**
@@ -296,8 +447,7 @@ class Shell {
      * @param charRange range of chars to remove
      */
     private void removeCharsByRange(char[] charRange){
-        IntStream.rangeClosed(charRange[0], charRange[1]).forEach(charToAdd ->
-                availableChars.remove((char)charToAdd));
+        availableChars.removeRange(charRange[0], charRange[1]);
     }
 
 }
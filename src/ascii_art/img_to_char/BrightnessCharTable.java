@@ -0,0 +1,158 @@
+package ascii_art.img_to_char;
+
+import java.util.Arrays;
+
+/**
+ * A lookup table from a grey value to the char set's most fitted character.
+ * The characters' brightness values are linearly stretched and sorted once, and the grey range
+ * is split into buckets which point to the best character at the bucket's lower edge. Finding the
+ * best character for a grey value then starts from its bucket and only moves past the few
+ * characters whose values fall inside that bucket.
+ * Ties are resolved like a linear scan over the char set would, in favour of the smaller char.
+ */
+class BrightnessCharTable {
+    private static final int NUM_BUCKETS = 4096;
+
+    private final float minValue;
+    private final float maxValue;
+    private final char[] sortedChars;
+    private final float[] sortedValues;
+    private final int[] bucketStarts;
+
+    /**
+     * Constructs a new BrightnessCharTable instance
+     * @param charSet chars to be used, must not be empty
+     * @param brightnessValues brightness value of every char in the char set
+     */
+    BrightnessCharTable(CharSet charSet, CharBrightnessValues brightnessValues){
+        float minValue = Float.POSITIVE_INFINITY;
+        float maxValue = Float.NEGATIVE_INFINITY;
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            float value = brightnessValues.get((char) c);
+            minValue = Math.min(minValue, value);
+            maxValue = Math.max(maxValue, value);
+        }
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+
+        // stretched values are never negative, so keys of their bits above the char sort by the
+        // value and then by the char
+        long[] keys = new long[charSet.size()];
+        int numChars = 0;
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            float stretchedValue = stretch(brightnessValues.get((char) c));
+            keys[numChars++] = (long) Float.floatToIntBits(stretchedValue) << Character.SIZE | c;
+        }
+        Arrays.sort(keys);
+
+        // chars with equal values can never beat the first of them, so only that one is kept
+        char[] chars = new char[numChars];
+        float[] values = new float[numChars];
+        int numDistinct = 0;
+        for (long key : keys) {
+            float value = Float.intBitsToFloat((int) (key >>> Character.SIZE));
+            if (numDistinct > 0 && values[numDistinct - 1] == value){
+                continue;
+            }
+            chars[numDistinct] = (char) key;
+            values[numDistinct] = value;
+            numDistinct++;
+        }
+        this.sortedChars = Arrays.copyOf(chars, numDistinct);
+        this.sortedValues = Arrays.copyOf(values, numDistinct);
+
+        this.bucketStarts = new int[NUM_BUCKETS];
+        int start = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            start = findMostFittedIndex((float) bucket / NUM_BUCKETS, start);
+            bucketStarts[bucket] = start;
+        }
+    }
+
+    /**
+     * Returns the char whose stretched brightness is closest to the given value
+     * @param valueToFit grey value between 0 and 1
+     * @return the best character
+     */
+    char getMostFittedCharacter(float valueToFit){
+        int bucket = Math.min(Math.max((int) (valueToFit * NUM_BUCKETS), 0), NUM_BUCKETS - 1);
+        return sortedChars[findMostFittedIndex(valueToFit, bucketStarts[bucket])];
+    }
+
+    /**
+     * Linearly stretches a char's brightness value by the range of the char set
+     * @param brightness brightness value of a char
+     * @return the value the char is matched by
+     */
+    float stretch(float brightness){
+        return minValue == maxValue ? 0 : (brightness - minValue) / (maxValue - minValue);
+    }
+
+    /**
+     * Checks whether both tables stretch the brightness values in the same way, in which case
+     * the chars both char sets share are matched by the same values
+     * @param other table to compare with
+     * @return true if the tables' char sets have the same brightness range
+     */
+    boolean hasSameRange(BrightnessCharTable other){
+        return minValue == other.minValue && maxValue == other.maxValue;
+    }
+
+    /**
+     * Returns the largest stretched value of the table which is smaller than the given one
+     * @param value stretched value
+     * @return the closest smaller value, or negative infinity if there is none
+     */
+    float getLowerValue(float value){
+        int index = getInsertionIndex(value);
+        return index == 0 ? Float.NEGATIVE_INFINITY : sortedValues[index - 1];
+    }
+
+    /**
+     * Returns the smallest stretched value of the table which is larger than the given one
+     * @param value stretched value
+     * @return the closest larger value, or positive infinity if there is none
+     */
+    float getUpperValue(float value){
+        int index = getInsertionIndex(value);
+        if (index < sortedValues.length && sortedValues[index] == value){
+            index++;
+        }
+        return index == sortedValues.length ? Float.POSITIVE_INFINITY : sortedValues[index];
+    }
+
+    /**
+     * Returns the index of the first sorted value which is not smaller than the given one
+     * @param value stretched value
+     * @return the index of the value, or of where it would be inserted
+     */
+    private int getInsertionIndex(float value){
+        int index = Arrays.binarySearch(sortedValues, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Walks up the sorted values from the given index for as long as they get closer to the value
+     * @param valueToFit grey value between 0 and 1
+     * @param start index of the best char for some value smaller or equal to valueToFit
+     * @return index of the best char for valueToFit
+     */
+    private int findMostFittedIndex(float valueToFit, int start){
+        int best = start;
+        float bestDifference = Math.abs(sortedValues[start] - valueToFit);
+        float previousDifference = bestDifference;
+        for (int i = start + 1; i < sortedValues.length; i++) {
+            float currentDifference = Math.abs(sortedValues[i] - valueToFit);
+            if (currentDifference > previousDifference){
+                break;
+            }
+            if (currentDifference < bestDifference ||
+                    (currentDifference == bestDifference && sortedChars[i] < sortedChars[best])){
+                best = i;
+                bestDifference = currentDifference;
+            }
+            previousDifference = currentDifference;
+        }
+        return best;
+    }
+}
@@ -2,163 +2,338 @@ package ascii_art.img_to_char;
 
 import image.Image;
 import image.SubImages;
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
 
-import java.awt.*;
-import java.util.*;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
-public class BrightnessImgCharMatcher {
+public class BrightnessImgCharMatcher implements ImgCharMatcher {
 
     private static final int PIXEL_RESOLUTION = 16;
-    private static final int MAX_RGB = 255;
-    private static final double RED_FOR_GREY_FACTOR = 0.2126;
-    private static final double GREEN_FOR_GREY_FACTOR = 0.7152;
-    private static final double BLUE_FOR_GREY_FACTOR = 0.0722;
+    private static final int SEQUENTIAL_PARALLELISM = 1;
 
     private final Image image;
     private final String fontName;
+    private final int parallelism;
+    private final GlyphBrightnessIndex brightnessIndex;
 
-    private final HashMap<Character, Float> characterBrightnessValues;
+    private final CharBrightnessValues characterBrightnessValues;
+    private ForkJoinPool matchingPool;
+    private CharSet tableCharSet;
+    private BrightnessCharTable charTable;
+    private TileMatchState matchState;
 
     /**
-     * Constructs a new BrightnessImgCharMatcher instance
+     * Constructs a new BrightnessImgCharMatcher instance which matches the sub images
+     * on the calling thread
      * @param image to create an instance for
      * @param fontName font to be used for rendering
      */
     public BrightnessImgCharMatcher(Image image, String fontName){
+        this(image, fontName, SEQUENTIAL_PARALLELISM);
+    }
+
+    /**
+     * Constructs a new BrightnessImgCharMatcher instance
+     * @param image to create an instance for
+     * @param fontName font to be used for rendering
+     * @param parallelism number of threads used for matching the sub images, 1 matches them
+     *                    on the calling thread. The output does not depend on this value.
+     */
+    public BrightnessImgCharMatcher(Image image, String fontName, int parallelism){
+        this(image, fontName, parallelism, null);
+    }
+
+    /**
+     * Constructs a new BrightnessImgCharMatcher instance which reads the brightness values of
+     * the chars from the given index, and only renders the chars the index does not cover.
+     * Values of newly rendered chars are added to the index.
+     * @param image to create an instance for, or null for a matcher which only matches rows of
+     *              brightness values with chooseCharsForRow
+     * @param fontName font to be used for rendering
+     * @param parallelism number of threads used for matching the sub images, 1 matches them
+     *                    on the calling thread. The output does not depend on this value.
+     * @param brightnessIndex index of known brightness values, or null to render every char
+     */
+    public BrightnessImgCharMatcher(Image image, String fontName, int parallelism,
+                                    GlyphBrightnessIndex brightnessIndex){
+        if (parallelism < SEQUENTIAL_PARALLELISM){
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
         this.image = image;
         this.fontName = fontName;
-        this.characterBrightnessValues = new HashMap<>();
+        this.parallelism = parallelism;
+        this.brightnessIndex = brightnessIndex;
+        this.characterBrightnessValues = new CharBrightnessValues();
+        if (brightnessIndex != null){
+            brightnessIndex.fillBrightnessValues(fontName, PIXEL_RESOLUTION,
+                    characterBrightnessValues);
+        }
     }
 
     /**
-     * Constructs a new ascii art matrix
+     * Constructs a new ascii art matrix. The tiles' grey values are kept between calls with the
+     * same number of characters in a row, so a render after adding or removing chars only
+     * re-matches the tiles whose characters may have changed.
      * @param numCharsInRow number of characters in the ascii image created
      * @param charSet chars to be used for the construction
      * @return the provided image in characters
      */
-    public char[][] chooseChars(int numCharsInRow, Character[] charSet){
-        for(char character : charSet){
-            calculateSingleCharBrightness(character);
-        }
-        int subImageSize = image.getWidth() / numCharsInRow;
-        int numCharsInCol = image.getHeight() / subImageSize;
-        SubImages subImages = image.getSubImages(subImageSize);
-        char[][] fittedChars = new char[numCharsInCol][numCharsInRow];
-        Map<Character, Float> currentCharsMap = getCurrentMap(charSet);
-        float currentMinValue = Collections.min(currentCharsMap.values());
-        float currentMaxValue = Collections.max(currentCharsMap.values());
-        int i = 0;
-        for(Color[][] subImage : subImages){
-            fittedChars[i / numCharsInRow][i % numCharsInRow] =
-                    getCharacterForSubImage(subImage, charSet, currentMinValue, currentMaxValue);
-            i++;
+    @Override
+    public char[][] chooseChars(int numCharsInRow, CharSet charSet){
+        if (matchState == null || matchState.getNumCharsInRow() != numCharsInRow){
+            matchState = null;
+            SubImages subImages = getSubImagesForRender(numCharsInRow, charSet);
+            StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+            BrightnessCharTable table = getCharTable(charSet);
+            TileMatchState state = new TileMatchState(subImages.getNumRows(), numCharsInRow);
+            matchRows(state.getFittedChars(), subImages, 0, subImages.getNumRows(), 0, table,
+                    state.getTileBrightness());
+            state.setCharSet(charSet, table);
+            matchState = state;
+            timer.stop((long) subImages.getNumRows() * subImages.getNumCols());
+        }
+        else {
+            prepareCharBrightness(charSet);
+            StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+            timer.stop(matchState.rematch(charSet, getCharTable(charSet),
+                    characterBrightnessValues));
+        }
+        char[][] fittedChars = new char[matchState.getFittedChars().length][];
+        for (int row = 0; row < fittedChars.length; row++) {
+            fittedChars[row] = matchState.getFittedChars()[row].clone();
         }
         return fittedChars;
     }
 
+    /**
+     * Constructs a new ascii art matrix and passes its rows in order to the given consumer
+     * as soon as they are matched, so the whole matrix is never held in memory.
+     * The row arrays are reused between calls to the consumer, which must not keep them.
+     * @param numCharsInRow number of characters in the ascii image created
+     * @param charSet chars to be used for the construction
+     * @param rowConsumer consumer of the rows of the provided image in characters
+     */
+    @Override
+    public void chooseChars(int numCharsInRow, CharSet charSet, Consumer<char[]> rowConsumer){
+        SubImages subImages = getSubImagesForRender(numCharsInRow, charSet);
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+        BrightnessCharTable table = getCharTable(charSet);
+        int numRows = subImages.getNumRows();
+        int bandRows = Math.min(parallelism * MatchRowsTask.MIN_ROWS_PER_TASK, numRows);
+        char[][] band = new char[bandRows][numCharsInRow];
+        for (int bandStart = 0; bandStart < numRows; bandStart += band.length) {
+            int bandEnd = Math.min(bandStart + band.length, numRows);
+            matchRows(band, subImages, bandStart, bandEnd, bandStart, table, null);
+            timer.pause();
+            for (int row = bandStart; row < bandEnd; row++) {
+                rowConsumer.accept(band[row - bandStart]);
+            }
+            timer.resume();
+        }
+        timer.stop((long) numRows * subImages.getNumCols());
+    }
+
+    @Override
+    public int[][] chooseColors(int numCharsInRow){
+        if (image == null){
+            throw new IllegalStateException("the matcher was created without an image");
+        }
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.COLOR);
+        SubImages subImages = image.getSubImages(image.getWidth() / numCharsInRow);
+        int[][] colors = subImages.getAverageColors();
+        timer.stop((long) subImages.getNumRows() * subImages.getNumCols());
+        return colors;
+    }
 
     /**
-     * Calculates the brightness value for a single character
-     * @param charToCheck character to be used for brightness calculation
+     * Matches a character to every value in a row of tile brightness values, for images which are
+     * not held in memory as a whole, such as a StreamingImage
+     * @param tileBrightness average grey value of each tile in the row
+     * @param charSet chars to be used for the construction
+     * @param fittedRow array to write the matched characters into
      */
-    private void calculateSingleCharBrightness(char charToCheck){
-        if (characterBrightnessValues.containsKey(charToCheck)){
-            return;
+    public void chooseCharsForRow(float[] tileBrightness, CharSet charSet, char[] fittedRow){
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            calculateSingleCharBrightness((char) c);
         }
-        boolean[][] brightnessArray = CharRenderer.getImg(charToCheck, PIXEL_RESOLUTION, fontName);
-        float charBrightness = (float) getNumberOfWhitePixels(brightnessArray) /
-                (PIXEL_RESOLUTION * PIXEL_RESOLUTION);
-        characterBrightnessValues.put(charToCheck, charBrightness);
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+        BrightnessCharTable table = getCharTable(charSet);
+        for (int col = 0; col < tileBrightness.length; col++) {
+            fittedRow[col] = table.getMostFittedCharacter(tileBrightness[col]);
+        }
+        timer.stop(tileBrightness.length);
     }
 
     /**
-     * Returns the number of white pixels in the given array
-     * @param brightnessArray a boolean array representing a character
-     * @return the number of white (true) pixels in the given array
+     * Prepares the brightness values of the char set and splits the image for rendering
+     * @param numCharsInRow number of characters in the ascii image created
+     * @param charSet chars to be used for the construction
+     * @return the sub images of the image, one for each character
      */
-    private int getNumberOfWhitePixels(boolean [][] brightnessArray){
-        int counter = 0;
-        for (boolean[] booleans : brightnessArray) {
-            for (boolean aBoolean : booleans) {
-                if (aBoolean) {
-                    counter++;
-                }
-            }
+    private SubImages getSubImagesForRender(int numCharsInRow, CharSet charSet){
+        if (image == null){
+            throw new IllegalStateException("the matcher was created without an image");
         }
-        return counter;
+        prepareCharBrightness(charSet);
+        SubImages subImages = image.getSubImages(image.getWidth() / numCharsInRow);
+        subImages.prepareBrightness();
+        return subImages;
     }
 
     /**
-     * Returns a filtered hashmap
-     * @param charSet that contains all relevant keys for the current set
-     * @return an updated hashmap which contains entries that's keys were requested
-     * for the current image
+     * Calculates the brightness values of the chars of the char set which are not known yet
+     * @param charSet chars to be used for the construction
      */
-    Map<Character, Float> getCurrentMap(Character[] charSet){
-        List<Character> charList = Arrays.asList(charSet);
-        return characterBrightnessValues.entrySet().stream().filter(x -> charList.contains(x.getKey()))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    private void prepareCharBrightness(CharSet charSet){
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.GLYPH_RENDER);
+        int numKnownChars = characterBrightnessValues.size();
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            calculateSingleCharBrightness((char) c);
+        }
+        timer.stop(characterBrightnessValues.size() - numKnownChars);
     }
 
     /**
-     * Returns the most fitted character for the given sub image using characters from the given
-     * char set
-     * @param subImage to be fit
-     * @param charSet to be used
-     * @return the most fitted character
+     * Matches a character to every sub image in the given range of rows, on the calling thread
+     * or on the matching pool according to the matcher's parallelism
+     * @param fittedChars matrix to write the matched characters into
+     * @param subImages sub images of the image
+     * @param fromRow first row to match, inclusive
+     * @param toRow last row to match, exclusive
+     * @param firstRow row of the image which is written to the first row of fittedChars
+     * @param table lookup table of the char set to be used
+     * @param tileBrightness array to write the grey value of every matched sub image into,
+     *                       row by row from the image's first row, or null to not keep them
      */
-    private Character getCharacterForSubImage(Color[][] subImage, Character[] charSet,
-                                              float minValue, float maxValue){
-        float greyValuesAverage = 0;
-        for (Color[] rowColors : subImage) {
-            for (Color color : rowColors) {
-                greyValuesAverage += color.getRed() * RED_FOR_GREY_FACTOR +
-                        color.getGreen() * GREEN_FOR_GREY_FACTOR +
-                        color.getBlue() * BLUE_FOR_GREY_FACTOR;
-            }
+    private void matchRows(char[][] fittedChars, SubImages subImages, int fromRow, int toRow,
+                           int firstRow, BrightnessCharTable table, float[] tileBrightness){
+        if (parallelism == SEQUENTIAL_PARALLELISM){
+            matchRowsRange(fittedChars, subImages, fromRow, toRow, firstRow, table,
+                    tileBrightness);
+        }
+        else {
+            getMatchingPool().invoke(new MatchRowsTask((taskFromRow, taskToRow) ->
+                    matchRowsRange(fittedChars, subImages, taskFromRow, taskToRow, firstRow, table,
+                            tileBrightness), fromRow, toRow));
+        }
+    }
+
+    /**
+     * Returns the lookup table of the given char set, the table is only rebuilt when the
+     * char set is different from the one used in the previous call
+     * @param charSet chars to be used
+     * @return the lookup table for the char set
+     */
+    private BrightnessCharTable getCharTable(CharSet charSet){
+        if (!charSet.equals(tableCharSet)){
+            charTable = new BrightnessCharTable(charSet, characterBrightnessValues);
+            tableCharSet = new CharSet(charSet);
         }
-        greyValuesAverage = greyValuesAverage / (MAX_RGB * subImage.length * subImage[0].length);
-        return getMostFittedCharacter(greyValuesAverage, charSet, minValue, maxValue);
+        return charTable;
     }
 
     /**
-     * Returns the char representing the value closest to the provided value
-     * after linear normalizing each char value
-     * @param valueToFit value
-     * @param charSet to be used
-     * @return the best character
+     * Matches a character to every sub image in the given range of rows
+     * @param fittedChars matrix to write the matched characters into
+     * @param subImages sub images of the image
+     * @param fromRow first row to match, inclusive
+     * @param toRow last row to match, exclusive
+     * @param firstRow row of the image which is written to the first row of fittedChars
+     * @param table lookup table of the char set to be used
+     * @param tileBrightness array to write the grey value of every matched sub image into,
+     *                       row by row from the image's first row, or null to not keep them
      */
-    private char getMostFittedCharacter(float valueToFit, Character[] charSet,
-                                        float minValue, float maxValue){
-        float smallestDifference = Float.POSITIVE_INFINITY;
-        char mostFittedChar = 0;
-        for (char key : charSet){
-            float linearStretchedValue = linearStretchCharBrightness(key, minValue, maxValue);
-            float currentDifference = Math.abs(linearStretchedValue - valueToFit);
-            if (currentDifference < smallestDifference){
-                smallestDifference = currentDifference;
-                mostFittedChar = key;
+    private void matchRowsRange(char[][] fittedChars, SubImages subImages, int fromRow, int toRow,
+                                int firstRow, BrightnessCharTable table, float[] tileBrightness){
+        int numCols = subImages.getNumCols();
+        for (int row = fromRow; row < toRow; row++) {
+            for (int col = 0; col < numCols; col++) {
+                float brightness = subImages.getBrightness(row, col);
+                if (tileBrightness != null){
+                    tileBrightness[row * numCols + col] = brightness;
+                }
+                fittedChars[row - firstRow][col] = table.getMostFittedCharacter(brightness);
             }
         }
-        return mostFittedChar;
     }
 
     /**
-     * Linearly Stretches the value of the given char
-     * @param key that is value needs to be normalized
-     * @param minValue min value to be normalized by
-     * @param maxValue max value to be normalized by
-     * @return normalized value
+     * Returns the pool used for parallel matching, creating it on the first call
+     * @return the matching pool
      */
-    private float linearStretchCharBrightness(char key, float minValue, float maxValue){
-        float currentValue = characterBrightnessValues.get(key);
-        return (currentValue - minValue) / (maxValue - minValue);
+    private ForkJoinPool getMatchingPool(){
+        if (matchingPool == null){
+            matchingPool = new ForkJoinPool(parallelism);
+        }
+        return matchingPool;
     }
 
+    /**
+     * Calculates the brightness value for a single character
+     * @param charToCheck character to be used for brightness calculation
+     */
+    private void calculateSingleCharBrightness(char charToCheck){
+        if (characterBrightnessValues.contains(charToCheck)){
+            return;
+        }
+        float charBrightness = renderCharBrightness(charToCheck, fontName);
+        characterBrightnessValues.put(charToCheck, charBrightness);
+        if (brightnessIndex != null){
+            brightnessIndex.put(fontName, PIXEL_RESOLUTION, charToCheck, charBrightness);
+        }
+    }
 
+    /**
+     * Adds the brightness values of the given chars to the index, rendering only the chars
+     * the index does not cover yet. Matchers which are later constructed with the index
+     * do not render any of these chars.
+     * @param brightnessIndex index to fill
+     * @param fontName font to be used for rendering
+     * @param charSet chars to be added
+     */
+    public static void fillBrightnessIndex(GlyphBrightnessIndex brightnessIndex, String fontName,
+                                           CharSet charSet){
+        CharBrightnessValues knownValues = new CharBrightnessValues();
+        brightnessIndex.fillBrightnessValues(fontName, PIXEL_RESOLUTION, knownValues);
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            if (!knownValues.contains((char) c)){
+                brightnessIndex.put(fontName, PIXEL_RESOLUTION, (char) c,
+                        renderCharBrightness((char) c, fontName));
+            }
+        }
+    }
 
+    /**
+     * Renders a single character and calculates its brightness value
+     * @param charToCheck character to be used for brightness calculation
+     * @param fontName font to be used for rendering
+     * @return the ratio of white pixels in the rendered character
+     */
+    private static float renderCharBrightness(char charToCheck, String fontName){
+        boolean[][] brightnessArray = CharRenderer.getSharedImg(charToCheck, PIXEL_RESOLUTION,
+                fontName);
+        return (float) getNumberOfWhitePixels(brightnessArray) /
+                (PIXEL_RESOLUTION * PIXEL_RESOLUTION);
+    }
 
+    /**
+     * Returns the number of white pixels in the given array
+     * @param brightnessArray a boolean array representing a character
+     * @return the number of white (true) pixels in the given array
+     */
+    private static int getNumberOfWhitePixels(boolean [][] brightnessArray){
+        int counter = 0;
+        for (boolean[] booleans : brightnessArray) {
+            for (boolean aBoolean : booleans) {
+                if (aBoolean) {
+                    counter++;
+                }
+            }
+        }
+        return counter;
+    }
 
 }
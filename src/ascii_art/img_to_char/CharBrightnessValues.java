@@ -0,0 +1,66 @@
+package ascii_art.img_to_char;
+
+import java.util.Arrays;
+
+/**
+ * Brightness values of chars, stored in a float array indexed by the char so that reading them
+ * needs no boxing. The array grows to the largest char added, chars with no value are NaN.
+ */
+class CharBrightnessValues {
+    private static final int INITIAL_SIZE = 128;
+    private static final int MAX_SIZE = Character.MAX_VALUE + 1;
+
+    private float[] values;
+    private int size;
+
+    /**
+     * Constructs a new empty CharBrightnessValues instance
+     */
+    CharBrightnessValues(){
+        values = new float[INITIAL_SIZE];
+        Arrays.fill(values, Float.NaN);
+    }
+
+    /**
+     * Checks whether the brightness value of a char is known
+     * @param c char to check
+     * @return true if the char has a value
+     */
+    boolean contains(char c){
+        return c < values.length && !Float.isNaN(values[c]);
+    }
+
+    /**
+     * Returns the brightness value of a char
+     * @param c char whose value is known
+     * @return the brightness value of the char
+     */
+    float get(char c){
+        return values[c];
+    }
+
+    /**
+     * Sets the brightness value of a char
+     * @param c char to set
+     * @param brightness brightness value of the char
+     */
+    void put(char c, float brightness){
+        if (c >= values.length){
+            int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(c + 1, Math.min(oldLength * 2, MAX_SIZE)));
+            Arrays.fill(values, oldLength, values.length, Float.NaN);
+        }
+        if (Float.isNaN(values[c])){
+            size++;
+        }
+        values[c] = brightness;
+    }
+
+    /**
+     * Size getter
+     * @return the number of chars with a known value
+     */
+    int size(){
+        return size;
+    }
+}
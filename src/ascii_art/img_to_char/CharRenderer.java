@@ -2,6 +2,11 @@ package ascii_art.img_to_char;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Inspired by, and partly copied from
@@ -14,16 +19,103 @@ import java.awt.image.BufferedImage;
 public class CharRenderer {
     private static final double X_OFFSET_FACTOR = 0.2;
     private static final double Y_OFFSET_FACTOR = 0.75;
+    private static final int MAX_CACHED_GLYPHS = 4096;
+    private static final float CACHE_LOAD_FACTOR = 0.75f;
+
+    // least recently used glyphs are evicted once the cache is full, guarded by its own lock.
+    // Every glyph is rendered by the task of its entry, which runs on the first thread to miss
+    // it, while the other threads wait for the same task instead of rendering the glyph again.
+    private static final Map<GlyphKey, FutureTask<boolean[][]>> glyphCache =
+            new LinkedHashMap<>(16, CACHE_LOAD_FACTOR, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<GlyphKey, FutureTask<boolean[][]>> eldest) {
+                    return size() > MAX_CACHED_GLYPHS;
+                }
+            };
 
     /**
      * Renders a given character, according to how it looks in the font specified in the
      * constructor, to a square black&white image (2D array of booleans),
      * whose dimension in pixels is specified.
+     * Rendered glyphs are cached for the whole process, so each glyph is only rasterized once.
+     * The returned array is a copy and may be modified by the caller.
      */
     public static boolean[][] getImg(char c, int pixels, String fontName) {
-        int key = (pixels << 8) | c;
-        return render(c, pixels, fontName);
+        return copyOf(getSharedImg(c, pixels, fontName));
     }
+
+    /**
+     * Same as getImg, but returns the cached glyph itself instead of a copy
+     * @return the rendered glyph, shared by all the callers, which must not modify it
+     */
+    static boolean[][] getSharedImg(char c, int pixels, String fontName) {
+        GlyphKey key = new GlyphKey(c, pixels, fontName);
+        FutureTask<boolean[][]> task;
+        boolean renderHere = false;
+        synchronized (glyphCache) {
+            task = glyphCache.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> render(c, pixels, fontName));
+                glyphCache.put(key, task);
+                renderHere = true;
+            }
+        }
+        if (renderHere) {
+            task.run();
+        }
+        return awaitGlyph(key, task);
+    }
+
+    /**
+     * Waits for the task rendering a glyph, without giving up on an interrupt since rendering
+     * a glyph is short. A failed task is removed from the cache, so the glyph is rendered again
+     * on the next call.
+     * @param key key of the glyph in the cache
+     * @param task task rendering the glyph
+     * @return the rendered glyph
+     */
+    private static boolean[][] awaitGlyph(GlyphKey key, FutureTask<boolean[][]> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    synchronized (glyphCache) {
+                        glyphCache.remove(key, task);
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException("Failed to render a glyph", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a deep copy of the given glyph
+     * @param glyph to be copied
+     * @return the copy
+     */
+    private static boolean[][] copyOf(boolean[][] glyph) {
+        boolean[][] copy = new boolean[glyph.length][];
+        for (int y = 0; y < glyph.length; y++) {
+            copy[y] = glyph[y].clone();
+        }
+        return copy;
+    }
+
     private static boolean[][] render(char c, int pixels, String fontName) {
         String charStr = Character.toString(c);
         Font font = new Font(fontName, Font.PLAIN, pixels);
@@ -52,4 +144,36 @@ public class CharRenderer {
         }
     }
 
+    /**
+     * Key of a rendered glyph in the glyph cache
+     */
+    private static final class GlyphKey {
+        private final char c;
+        private final int pixels;
+        private final String fontName;
+
+        GlyphKey(char c, int pixels, String fontName) {
+            this.c = c;
+            this.pixels = pixels;
+            this.fontName = fontName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GlyphKey)) {
+                return false;
+            }
+            GlyphKey other = (GlyphKey) o;
+            return c == other.c && pixels == other.pixels && fontName.equals(other.fontName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(c, pixels, fontName);
+        }
+    }
+
 }
@@ -0,0 +1,248 @@
+package ascii_art.img_to_char;
+
+import java.util.BitSet;
+
+/**
+ * A set of chars stored as bits, without boxing. The ASCII chars are kept in a 128 bit bitmap of
+ * two longs, and a BitSet is only allocated once a char beyond the ASCII range is added.
+ * The chars of the set are always visited in ascending order, which is the order the matcher
+ * resolves ties by.
+ */
+public class CharSet {
+    private static final int ASCII_SIZE = 128;
+    private static final int WORD_BITS = Long.SIZE;
+    private static final int NO_CHAR = -1;
+
+    private long lowWord;
+    private long highWord;
+    private BitSet unicodeChars;
+    private int size;
+
+    /**
+     * Constructs a new empty CharSet instance
+     */
+    public CharSet(){
+    }
+
+    /**
+     * Constructs a new CharSet instance holding the same chars as the given set
+     * @param other set to copy
+     */
+    public CharSet(CharSet other){
+        this.lowWord = other.lowWord;
+        this.highWord = other.highWord;
+        this.unicodeChars = other.unicodeChars == null ? null : (BitSet) other.unicodeChars.clone();
+        this.size = other.size;
+    }
+
+    /**
+     * Returns a set of the given chars
+     * @param chars chars of the set
+     * @return the new set
+     */
+    public static CharSet of(char... chars){
+        CharSet charSet = new CharSet();
+        for (char c : chars) {
+            charSet.add(c);
+        }
+        return charSet;
+    }
+
+    /**
+     * Adds a char to the set
+     * @param c char to add
+     * @return true if the char was not in the set
+     */
+    public boolean add(char c){
+        if (contains(c)){
+            return false;
+        }
+        if (c < WORD_BITS){
+            lowWord |= 1L << c;
+        }
+        else if (c < ASCII_SIZE){
+            highWord |= 1L << c;
+        }
+        else {
+            if (unicodeChars == null){
+                unicodeChars = new BitSet();
+            }
+            unicodeChars.set(c);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds every char in the given range to the set
+     * @param from first char of the range
+     * @param to last char of the range, inclusive
+     */
+    public void addRange(char from, char to){
+        for (int c = from; c <= to; c++) {
+            add((char) c);
+        }
+    }
+
+    /**
+     * Removes a char from the set
+     * @param c char to remove
+     * @return true if the char was in the set
+     */
+    public boolean remove(char c){
+        if (!contains(c)){
+            return false;
+        }
+        if (c < WORD_BITS){
+            lowWord &= ~(1L << c);
+        }
+        else if (c < ASCII_SIZE){
+            highWord &= ~(1L << c);
+        }
+        else {
+            unicodeChars.clear(c);
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every char in the given range from the set
+     * @param from first char of the range
+     * @param to last char of the range, inclusive
+     */
+    public void removeRange(char from, char to){
+        for (int c = from; c <= to; c++) {
+            remove((char) c);
+        }
+    }
+
+    /**
+     * Checks whether a char is in the set
+     * @param c char to check
+     * @return true if the char is in the set
+     */
+    public boolean contains(char c){
+        if (c < WORD_BITS){
+            return (lowWord & (1L << c)) != 0;
+        }
+        if (c < ASCII_SIZE){
+            return (highWord & (1L << c)) != 0;
+        }
+        return unicodeChars != null && unicodeChars.get(c);
+    }
+
+    /**
+     * Size getter
+     * @return the number of chars in the set
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Checks whether the set is empty
+     * @return true if the set holds no chars
+     */
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Returns the first char of the set which is not smaller than the given value, so the set is
+     * visited with: for (int c = set.nextChar(0); c >= 0; c = set.nextChar(c + 1))
+     * @param from value to start from
+     * @return the next char of the set, or -1 if there is none
+     */
+    public int nextChar(int from){
+        if (from < WORD_BITS){
+            long word = lowWord & (-1L << from);
+            if (word != 0){
+                return Long.numberOfTrailingZeros(word);
+            }
+            from = WORD_BITS;
+        }
+        if (from < ASCII_SIZE){
+            long word = highWord & (-1L << from);
+            if (word != 0){
+                return WORD_BITS + Long.numberOfTrailingZeros(word);
+            }
+            from = ASCII_SIZE;
+        }
+        if (unicodeChars == null){
+            return NO_CHAR;
+        }
+        return unicodeChars.nextSetBit(from);
+    }
+
+    /**
+     * Returns the chars of the set
+     * @return the chars in ascending order
+     */
+    public char[] toCharArray(){
+        char[] chars = new char[size];
+        int i = 0;
+        for (int c = nextChar(0); c >= 0; c = nextChar(c + 1)) {
+            chars[i++] = (char) c;
+        }
+        return chars;
+    }
+
+    /**
+     * Returns the chars which are in exactly one of the two sets
+     * @param other set to compare with
+     * @return a new set of the chars the sets do not share
+     */
+    public CharSet symmetricDifference(CharSet other){
+        CharSet difference = new CharSet();
+        difference.lowWord = lowWord ^ other.lowWord;
+        difference.highWord = highWord ^ other.highWord;
+        difference.size = Long.bitCount(difference.lowWord) + Long.bitCount(difference.highWord);
+        if (unicodeChars != null || other.unicodeChars != null){
+            difference.unicodeChars = new BitSet();
+            if (unicodeChars != null){
+                difference.unicodeChars.xor(unicodeChars);
+            }
+            if (other.unicodeChars != null){
+                difference.unicodeChars.xor(other.unicodeChars);
+            }
+            difference.size += difference.unicodeChars.cardinality();
+        }
+        return difference;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (this == o){
+            return true;
+        }
+        if (!(o instanceof CharSet)){
+            return false;
+        }
+        CharSet other = (CharSet) o;
+        if (lowWord != other.lowWord || highWord != other.highWord || size != other.size){
+            return false;
+        }
+        // both sets have the same number of chars beyond ASCII, their bitmaps may still be empty
+        int numAsciiChars = Long.bitCount(lowWord) + Long.bitCount(highWord);
+        return size == numAsciiChars || unicodeChars.equals(other.unicodeChars);
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = Long.hashCode(lowWord) * 31 + Long.hashCode(highWord);
+        for (int c = nextChar(ASCII_SIZE); c >= 0; c = nextChar(c + 1)) {
+            hash = hash * 31 + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the chars of the set as a string
+     * @return the chars in ascending order
+     */
+    @Override
+    public String toString(){
+        return new String(toCharArray());
+    }
+}
@@ -0,0 +1,214 @@
+package ascii_art.img_to_char;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Index of glyph brightness values per (font, resolution, char) which can be saved to a compact
+ * binary file and loaded again by later runs, so that matchers using it do not have to render
+ * the glyphs it already covers.
+ * The file is a magic number followed by one section per (font, resolution) pair, each holding
+ * the font name, the resolution and a list of (char, brightness) entries. The magic number holds
+ * the version of the format, so files of other versions are rejected like corrupt ones.
+ * The file is replaced atomically when it is saved, so a run stopped while saving leaves
+ * either the old file or the new one, never a partial file.
+ */
+public class GlyphBrightnessIndex {
+    private static final int MAGIC = 0x47424931;
+    private static final String SECTION_KEY_FORMAT = "%s:%d";
+    private static final int CHAR_ENTRY_BYTES = Character.BYTES + Float.BYTES;
+    private static final String TEMP_FILE_FORMAT = "%s.%d.tmp";
+
+    private final HashMap<String, Section> sections = new HashMap<>();
+    private boolean modified;
+
+    /**
+     * Constructs a new empty GlyphBrightnessIndex instance
+     */
+    public GlyphBrightnessIndex(){
+    }
+
+    /**
+     * Loads an index from the given file. The file is read whole into memory and closed before
+     * it is parsed, rather than memory mapped, since a live mapping keeps the file from being
+     * replaced by save on some platforms.
+     * @param path index file to read
+     * @return the loaded index
+     * @throws IOException in case the file could not be read or is not an index file
+     */
+    public static GlyphBrightnessIndex load(Path path) throws IOException {
+        GlyphBrightnessIndex index = new GlyphBrightnessIndex();
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("\"%s\" is too large", path));
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException(String.format("\"%s\" is truncated", path));
+                }
+            }
+            buffer.flip();
+        }
+        try {
+            if (buffer.remaining() < Integer.BYTES || buffer.getInt() != MAGIC) {
+                throw new IOException(String.format("\"%s\" is not a glyph brightness index", path));
+            }
+            while (buffer.hasRemaining()) {
+                byte[] fontNameBytes = new byte[buffer.getInt()];
+                buffer.get(fontNameBytes);
+                String fontName = new String(fontNameBytes, StandardCharsets.UTF_8);
+                Section section = index.getSection(fontName, buffer.getInt());
+                int numEntries = buffer.getInt();
+                if (buffer.remaining() < numEntries * CHAR_ENTRY_BYTES) {
+                    throw new IOException(String.format("\"%s\" is truncated", path));
+                }
+                for (int i = 0; i < numEntries; i++) {
+                    section.brightnessValues.put(buffer.getChar(), buffer.getFloat());
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("\"%s\" is not a valid glyph brightness index",
+                    path), e);
+        }
+        return index;
+    }
+
+    /**
+     * Loads an index from the given file, or returns an empty index if it does not exist yet.
+     * A file which could not be read, is corrupt or is of another version is logged as a warning
+     * and an empty index is returned as well, so its values are rendered again and the file is
+     * replaced when the index is saved.
+     * @param path index file to read
+     * @return the loaded index, or an empty one
+     */
+    public static GlyphBrightnessIndex loadOrCreate(Path path) {
+        if (!Files.exists(path)) {
+            return new GlyphBrightnessIndex();
+        }
+        try {
+            return load(path);
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("%s, regenerating it", e.getMessage()));
+            return new GlyphBrightnessIndex();
+        }
+    }
+
+    /**
+     * Saves the index to the given file, replacing it if it exists. The index is written to a
+     * temporary file in the same directory, named after the process so concurrent runs do not
+     * share it, which is then moved over the given file atomically.
+     * @param path index file to write
+     * @throws IOException in case the writing was not successful, the given file is unchanged
+     */
+    public synchronized void save(Path path) throws IOException {
+        Path tempPath = path.toAbsolutePath().resolveSibling(String.format(TEMP_FILE_FORMAT,
+                path.getFileName(), ProcessHandle.current().pid()));
+        try {
+            write(tempPath);
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        modified = false;
+    }
+
+    /**
+     * Writes the index to the given file
+     * @param path file to write
+     * @throws IOException in case the writing was not successful
+     */
+    private void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            for (Section section : sections.values()) {
+                byte[] fontNameBytes = section.fontName.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(fontNameBytes.length);
+                out.write(fontNameBytes);
+                out.writeInt(section.resolution);
+                out.writeInt(section.brightnessValues.size());
+                for (Map.Entry<Character, Float> entry : section.brightnessValues.entrySet()) {
+                    out.writeChar(entry.getKey());
+                    out.writeFloat(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether values were added to the index since it was loaded or last saved
+     * @return true if the index has values which are not saved yet
+     */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Copies every brightness value the index holds for the given font and resolution
+     * @param fontName font of the glyphs
+     * @param resolution pixel resolution the glyphs were rendered in
+     * @param target values to copy the index's values into
+     */
+    synchronized void fillBrightnessValues(String fontName, int resolution,
+                                           CharBrightnessValues target) {
+        Section section = sections.get(String.format(SECTION_KEY_FORMAT, fontName, resolution));
+        if (section != null) {
+            section.brightnessValues.forEach(target::put);
+        }
+    }
+
+    /**
+     * Adds a brightness value to the index
+     * @param fontName font of the glyph
+     * @param resolution pixel resolution the glyph was rendered in
+     * @param c the glyph's char
+     * @param brightness brightness value of the glyph
+     */
+    public synchronized void put(String fontName, int resolution, char c, float brightness) {
+        Float previous = getSection(fontName, resolution).brightnessValues.put(c, brightness);
+        if (previous == null || previous != brightness) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Returns the section of the given font and resolution, creating it if needed
+     * @param fontName font of the glyphs
+     * @param resolution pixel resolution the glyphs were rendered in
+     * @return the section
+     */
+    private Section getSection(String fontName, int resolution) {
+        return sections.computeIfAbsent(String.format(SECTION_KEY_FORMAT, fontName, resolution),
+                key -> new Section(fontName, resolution));
+    }
+
+    /**
+     * Brightness values of the glyphs of a single font in a single resolution
+     */
+    private static final class Section {
+        private final String fontName;
+        private final int resolution;
+        private final HashMap<Character, Float> brightnessValues = new HashMap<>();
+
+        Section(String fontName, int resolution) {
+            this.fontName = fontName;
+            this.resolution = resolution;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ascii_art.img_to_char;
+
+import java.util.function.Consumer;
+
+/**
+ * Converts an image to a matrix of characters, matching a character of a char set to every
+ * square sub image of it.
+ */
+public interface ImgCharMatcher {
+
+    /**
+     * Constructs a new ascii art matrix
+     * @param numCharsInRow number of characters in the ascii image created
+     * @param charSet chars to be used for the construction
+     * @return the provided image in characters
+     */
+    char[][] chooseChars(int numCharsInRow, CharSet charSet);
+
+    /**
+     * Constructs a new ascii art matrix and passes its rows in order to the given consumer
+     * as soon as they are matched, so the whole matrix is never held in memory.
+     * The row arrays are reused between calls to the consumer, which must not keep them.
+     * @param numCharsInRow number of characters in the ascii image created
+     * @param charSet chars to be used for the construction
+     * @param rowConsumer consumer of the rows of the provided image in characters
+     */
+    void chooseChars(int numCharsInRow, CharSet charSet, Consumer<char[]> rowConsumer);
+
+    /**
+     * Returns the average color of every sub image, in the same layout as the chars of
+     * chooseChars, for colored outputs
+     * @param numCharsInRow number of characters in the ascii image created
+     * @return the colors packed as 0xRRGGBB, one array for each row of chars
+     */
+    int[][] chooseColors(int numCharsInRow);
+}
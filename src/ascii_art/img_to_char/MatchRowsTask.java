@@ -0,0 +1,51 @@
+package ascii_art.img_to_char;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Task which matches a range of rows, splitting it in halves between the pool's threads.
+ * Every row is matched by exactly one task so the result is the same as the sequential one.
+ */
+class MatchRowsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    static final int MIN_ROWS_PER_TASK = 4;
+
+    /**
+     * Matches the characters of a range of rows on the calling thread
+     */
+    interface RowsMatcher {
+        /**
+         * Matches the characters of the given rows
+         * @param fromRow first row to match, inclusive
+         * @param toRow last row to match, exclusive
+         */
+        void matchRows(int fromRow, int toRow);
+    }
+
+    private final transient RowsMatcher rowsMatcher;
+    private final int fromRow;
+    private final int toRow;
+
+    /**
+     * Constructs a new MatchRowsTask instance
+     * @param rowsMatcher matches the rows of each part of the range
+     * @param fromRow first row to match, inclusive
+     * @param toRow last row to match, exclusive
+     */
+    MatchRowsTask(RowsMatcher rowsMatcher, int fromRow, int toRow){
+        this.rowsMatcher = rowsMatcher;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+    }
+
+    @Override
+    protected void compute() {
+        if (toRow - fromRow <= MIN_ROWS_PER_TASK){
+            rowsMatcher.matchRows(fromRow, toRow);
+            return;
+        }
+        int middleRow = (fromRow + toRow) >>> 1;
+        invokeAll(new MatchRowsTask(rowsMatcher, fromRow, middleRow),
+                new MatchRowsTask(rowsMatcher, middleRow, toRow));
+    }
+}
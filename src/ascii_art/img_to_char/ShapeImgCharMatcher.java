@@ -0,0 +1,298 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import image.SubImages;
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Matches characters to the sub images by their shape instead of only their brightness.
+ * Every glyph is rendered to a 16x16 mask packed into four longs, one bit per white pixel. Every
+ * sub image is split into 16x16 cells, and the cells brighter than the sub image's average form
+ * a mask of the same layout. The distance of a glyph from a sub image is the number of bits their
+ * masks differ in, counted with Long.bitCount on their XOR, plus the difference of their
+ * brightness values, stretched like the brightness matcher stretches them and weighted as if
+ * every pixel of the mask was wrong. Sub images with hardly any contrast have no shape to match,
+ * so only their brightness is compared. Ties are resolved in favour of the smaller char.
+ */
+public class ShapeImgCharMatcher implements ImgCharMatcher {
+    private static final int GLYPH_RESOLUTION = 16;
+    private static final int MASK_WORDS = GLYPH_RESOLUTION * GLYPH_RESOLUTION / Long.SIZE;
+    private static final int ROWS_PER_WORD = Long.SIZE / GLYPH_RESOLUTION;
+    private static final int NUM_GLYPH_PIXELS = GLYPH_RESOLUTION * GLYPH_RESOLUTION;
+    private static final int SEQUENTIAL_PARALLELISM = 1;
+    private static final float MIN_SHAPE_CONTRAST = 0.1f;
+    private static final float BRIGHTNESS_WEIGHT = NUM_GLYPH_PIXELS;
+
+    private final Image image;
+    private final String fontName;
+    private final int parallelism;
+    private ForkJoinPool matchingPool;
+    private CharSet tableCharSet;
+    private char[] glyphChars;
+    private long[] glyphMasks;
+    private float[] glyphBrightness;
+
+    /**
+     * Constructs a new ShapeImgCharMatcher instance which matches the sub images on the
+     * calling thread
+     * @param image to create an instance for
+     * @param fontName font to be used for rendering
+     */
+    public ShapeImgCharMatcher(Image image, String fontName){
+        this(image, fontName, SEQUENTIAL_PARALLELISM);
+    }
+
+    /**
+     * Constructs a new ShapeImgCharMatcher instance
+     * @param image to create an instance for
+     * @param fontName font to be used for rendering
+     * @param parallelism number of threads used for matching the sub images, 1 matches them
+     *                    on the calling thread. The output does not depend on this value.
+     */
+    public ShapeImgCharMatcher(Image image, String fontName, int parallelism){
+        if (parallelism < SEQUENTIAL_PARALLELISM){
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.image = image;
+        this.fontName = fontName;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public char[][] chooseChars(int numCharsInRow, CharSet charSet){
+        SubImages cells = getCellsForRender(numCharsInRow, charSet);
+        int tileSize = image.getWidth() / numCharsInRow;
+        int numRows = image.getHeight() / tileSize;
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+        char[][] fittedChars = new char[numRows][numCharsInRow];
+        matchRows(fittedChars, cells, tileSize, 0, numRows, 0);
+        timer.stop((long) numRows * numCharsInRow);
+        return fittedChars;
+    }
+
+    @Override
+    public void chooseChars(int numCharsInRow, CharSet charSet, Consumer<char[]> rowConsumer){
+        SubImages cells = getCellsForRender(numCharsInRow, charSet);
+        int tileSize = image.getWidth() / numCharsInRow;
+        int numRows = image.getHeight() / tileSize;
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.MATCH);
+        char[][] band = new char[Math.min(parallelism * MatchRowsTask.MIN_ROWS_PER_TASK, numRows)]
+                [numCharsInRow];
+        for (int bandStart = 0; bandStart < numRows; bandStart += band.length) {
+            int bandEnd = Math.min(bandStart + band.length, numRows);
+            matchRows(band, cells, tileSize, bandStart, bandEnd, bandStart);
+            timer.pause();
+            for (int row = bandStart; row < bandEnd; row++) {
+                rowConsumer.accept(band[row - bandStart]);
+            }
+            timer.resume();
+        }
+        timer.stop((long) numRows * numCharsInRow);
+    }
+
+    @Override
+    public int[][] chooseColors(int numCharsInRow){
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.COLOR);
+        SubImages subImages = image.getSubImages(image.getWidth() / numCharsInRow);
+        int[][] colors = subImages.getAverageColors();
+        timer.stop((long) subImages.getNumRows() * subImages.getNumCols());
+        return colors;
+    }
+
+    /**
+     * Prepares the glyph masks of the char set and splits the image into the cells the masks of
+     * the sub images are built from. Sub images whose size is a multiple of 16 are split into
+     * 16x16 equal cells, smaller ones sample a single pixel for each cell.
+     * @param numCharsInRow number of characters in the ascii image created
+     * @param charSet chars to be used for the construction
+     * @return the cells of the image
+     */
+    private SubImages getCellsForRender(int numCharsInRow, CharSet charSet){
+        prepareGlyphMasks(charSet);
+        int tileSize = image.getWidth() / numCharsInRow;
+        int cellSize = tileSize % GLYPH_RESOLUTION == 0 ? tileSize / GLYPH_RESOLUTION : 1;
+        SubImages cells = image.getSubImages(cellSize);
+        cells.prepareBrightness();
+        return cells;
+    }
+
+    /**
+     * Renders the glyph masks of the char set, the masks are only rebuilt when the char set is
+     * different from the one used in the previous call
+     * @param charSet chars to be used
+     */
+    private void prepareGlyphMasks(CharSet charSet){
+        if (charSet.equals(tableCharSet)){
+            return;
+        }
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.GLYPH_RENDER);
+        glyphChars = charSet.toCharArray();
+        glyphMasks = new long[glyphChars.length * MASK_WORDS];
+        glyphBrightness = new float[glyphChars.length];
+        float minWhiteRatio = Float.POSITIVE_INFINITY;
+        float maxWhiteRatio = Float.NEGATIVE_INFINITY;
+        for (int glyph = 0; glyph < glyphChars.length; glyph++) {
+            boolean[][] pixels = CharRenderer.getSharedImg(glyphChars[glyph], GLYPH_RESOLUTION,
+                    fontName);
+            int numWhitePixels = 0;
+            for (int y = 0; y < GLYPH_RESOLUTION; y++) {
+                for (int x = 0; x < GLYPH_RESOLUTION; x++) {
+                    if (pixels[y][x]){
+                        glyphMasks[glyph * MASK_WORDS + y / ROWS_PER_WORD] |= getMaskBit(x, y);
+                        numWhitePixels++;
+                    }
+                }
+            }
+            glyphBrightness[glyph] = (float) numWhitePixels / NUM_GLYPH_PIXELS;
+            minWhiteRatio = Math.min(minWhiteRatio, glyphBrightness[glyph]);
+            maxWhiteRatio = Math.max(maxWhiteRatio, glyphBrightness[glyph]);
+        }
+        for (int glyph = 0; glyph < glyphChars.length; glyph++) {
+            glyphBrightness[glyph] = minWhiteRatio == maxWhiteRatio ? 0 :
+                    (glyphBrightness[glyph] - minWhiteRatio) / (maxWhiteRatio - minWhiteRatio);
+        }
+        tableCharSet = new CharSet(charSet);
+        timer.stop(glyphChars.length);
+    }
+
+    /**
+     * Matches a character to every sub image in the given range of rows, on the calling thread
+     * or on the matching pool according to the matcher's parallelism
+     * @param fittedChars matrix to write the matched characters into
+     * @param cells cells of the image
+     * @param tileSize height and width of each sub image
+     * @param fromRow first row to match, inclusive
+     * @param toRow last row to match, exclusive
+     * @param firstRow row of the image which is written to the first row of fittedChars
+     */
+    private void matchRows(char[][] fittedChars, SubImages cells, int tileSize, int fromRow,
+                           int toRow, int firstRow){
+        if (parallelism == SEQUENTIAL_PARALLELISM){
+            matchRowsRange(fittedChars, cells, tileSize, fromRow, toRow, firstRow);
+        }
+        else {
+            if (matchingPool == null){
+                matchingPool = new ForkJoinPool(parallelism);
+            }
+            matchingPool.invoke(new MatchRowsTask((taskFromRow, taskToRow) ->
+                    matchRowsRange(fittedChars, cells, tileSize, taskFromRow, taskToRow, firstRow),
+                    fromRow, toRow));
+        }
+    }
+
+    /**
+     * Matches a character to every sub image in the given range of rows
+     * @param fittedChars matrix to write the matched characters into
+     * @param cells cells of the image
+     * @param tileSize height and width of each sub image
+     * @param fromRow first row to match, inclusive
+     * @param toRow last row to match, exclusive
+     * @param firstRow row of the image which is written to the first row of fittedChars
+     */
+    private void matchRowsRange(char[][] fittedChars, SubImages cells, int tileSize, int fromRow,
+                                int toRow, int firstRow){
+        float[] cellBrightness = new float[NUM_GLYPH_PIXELS];
+        long[] tileMask = new long[MASK_WORDS];
+        for (int row = fromRow; row < toRow; row++) {
+            char[] fittedRow = fittedChars[row - firstRow];
+            for (int col = 0; col < fittedRow.length; col++) {
+                fillCellBrightness(cells, tileSize, row, col, cellBrightness);
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                float sum = 0;
+                for (float brightness : cellBrightness) {
+                    min = Math.min(min, brightness);
+                    max = Math.max(max, brightness);
+                    sum += brightness;
+                }
+                float average = sum / NUM_GLYPH_PIXELS;
+                boolean hasShape = max - min >= MIN_SHAPE_CONTRAST;
+                if (hasShape){
+                    fillTileMask(cellBrightness, average, tileMask);
+                }
+                fittedRow[col] = getMostFittedCharacter(hasShape ? tileMask : null, average);
+            }
+        }
+    }
+
+    /**
+     * Reads the grey values of the cells of a sub image
+     * @param cells cells of the image
+     * @param tileSize height and width of each sub image
+     * @param row row of the sub image
+     * @param col column of the sub image
+     * @param cellBrightness array to write the grey values into, row after row
+     */
+    private void fillCellBrightness(SubImages cells, int tileSize, int row, int col,
+                                    float[] cellBrightness){
+        boolean exactCells = cells.getSubImageSize() * GLYPH_RESOLUTION == tileSize;
+        for (int y = 0; y < GLYPH_RESOLUTION; y++) {
+            int cellRow = exactCells ? row * GLYPH_RESOLUTION + y :
+                    row * tileSize + y * tileSize / GLYPH_RESOLUTION;
+            for (int x = 0; x < GLYPH_RESOLUTION; x++) {
+                int cellCol = exactCells ? col * GLYPH_RESOLUTION + x :
+                        col * tileSize + x * tileSize / GLYPH_RESOLUTION;
+                cellBrightness[y * GLYPH_RESOLUTION + x] = cells.getBrightness(cellRow, cellCol);
+            }
+        }
+    }
+
+    /**
+     * Sets the bits of the cells which are brighter than the sub image's average, in the layout
+     * of the glyph masks
+     * @param cellBrightness grey values of the cells, row after row
+     * @param average average grey value of the cells
+     * @param tileMask array to write the mask into
+     */
+    private static void fillTileMask(float[] cellBrightness, float average, long[] tileMask){
+        Arrays.fill(tileMask, 0);
+        for (int y = 0; y < GLYPH_RESOLUTION; y++) {
+            for (int x = 0; x < GLYPH_RESOLUTION; x++) {
+                if (cellBrightness[y * GLYPH_RESOLUTION + x] > average){
+                    tileMask[y / ROWS_PER_WORD] |= getMaskBit(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the char whose glyph is closest to a sub image
+     * @param tileMask mask of the sub image, or null to only compare the brightness values
+     * @param brightness average grey value of the sub image
+     * @return the best character
+     */
+    private char getMostFittedCharacter(long[] tileMask, float brightness){
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int glyph = 0; glyph < glyphChars.length; glyph++) {
+            float distance = Math.abs(glyphBrightness[glyph] - brightness) * BRIGHTNESS_WEIGHT;
+            if (tileMask != null){
+                for (int word = 0; word < MASK_WORDS; word++) {
+                    distance += Long.bitCount(tileMask[word] ^
+                            glyphMasks[glyph * MASK_WORDS + word]);
+                }
+            }
+            if (distance < bestDistance){
+                best = glyph;
+                bestDistance = distance;
+            }
+        }
+        return glyphChars[best];
+    }
+
+    /**
+     * Returns the bit of a pixel inside its word of a mask
+     * @param x col of the pixel
+     * @param y row of the pixel
+     * @return the bit of the pixel
+     */
+    private static long getMaskBit(int x, int y){
+        return 1L << ((y % ROWS_PER_WORD) * GLYPH_RESOLUTION + x);
+    }
+}
@@ -0,0 +1,190 @@
+package ascii_art.img_to_char;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The tiles' brightness values and matched characters of a previous render, which let a render
+ * with a slightly different char set only re-match the tiles whose answer may have changed.
+ * The grey value of a tile does not depend on the char set, and as long as the char set keeps its
+ * brightness range, the chars both sets share are matched by the same stretched values and ties
+ * are still resolved in favour of the smaller char. A tile can then only change its answer if one
+ * of the added or removed chars is at least as close to it as the nearest shared char, meaning its
+ * value lies between the shared chars around a changed one. The tiles are grouped into buckets
+ * by their values once, so each such range only visits the tiles of the buckets it covers.
+ */
+class TileMatchState {
+    private static final int NUM_BUCKETS = 4096;
+
+    private final int numCharsInRow;
+    private final float[] tileBrightness;
+    private final char[][] fittedChars;
+    private int[] tilesByBucket;
+    private int[] bucketStarts;
+    private CharSet charSet;
+    private BrightnessCharTable table;
+
+    /**
+     * Constructs a new TileMatchState instance, which is filled by the first render
+     * @param numRows number of rows of characters
+     * @param numCharsInRow number of characters in each row
+     */
+    TileMatchState(int numRows, int numCharsInRow){
+        this.numCharsInRow = numCharsInRow;
+        this.tileBrightness = new float[numRows * numCharsInRow];
+        this.fittedChars = new char[numRows][numCharsInRow];
+    }
+
+    /**
+     * Number of chars in row getter
+     * @return the number of characters in each row of the render
+     */
+    int getNumCharsInRow() {
+        return numCharsInRow;
+    }
+
+    /**
+     * Tile brightness getter, the first render writes the grey value of tile (row, col) at
+     * index row * numCharsInRow + col
+     * @return the grey values of the tiles
+     */
+    float[] getTileBrightness() {
+        return tileBrightness;
+    }
+
+    /**
+     * Fitted chars getter, the first render writes its characters into this matrix
+     * @return the matched characters of the last render
+     */
+    char[][] getFittedChars() {
+        return fittedChars;
+    }
+
+    /**
+     * Sets the char set the fitted chars were matched with
+     * @param charSet chars used for the render
+     * @param table lookup table of the char set
+     */
+    void setCharSet(CharSet charSet, BrightnessCharTable table){
+        this.charSet = new CharSet(charSet);
+        this.table = table;
+    }
+
+    /**
+     * Re-matches the tiles for a new char set, only visiting the tiles whose answer may have
+     * changed when the new set keeps the brightness range of the previous one, and all of them
+     * otherwise
+     * @param newCharSet chars to be used for the render
+     * @param newTable lookup table of the new char set
+     * @param brightnessValues brightness value of every char in both char sets
+     * @return the number of re-matched tiles
+     */
+    long rematch(CharSet newCharSet, BrightnessCharTable newTable,
+                 CharBrightnessValues brightnessValues){
+        long numMatched;
+        if (newCharSet.equals(charSet)){
+            numMatched = 0;
+        }
+        else if (newTable.hasSameRange(table)){
+            numMatched = rematchChanged(newCharSet, newTable, brightnessValues);
+        }
+        else {
+            for (int tile = 0; tile < tileBrightness.length; tile++) {
+                matchTile(tile, newTable);
+            }
+            numMatched = tileBrightness.length;
+        }
+        setCharSet(newCharSet, newTable);
+        return numMatched;
+    }
+
+    /**
+     * Re-matches the tiles whose values lie between the shared chars around every added or
+     * removed char
+     * @param newCharSet chars to be used for the render
+     * @param newTable lookup table of the new char set
+     * @param brightnessValues brightness value of every char in both char sets
+     * @return the number of re-matched tiles
+     */
+    private long rematchChanged(CharSet newCharSet, BrightnessCharTable newTable,
+                                CharBrightnessValues brightnessValues){
+        CharSet changedChars = charSet.symmetricDifference(newCharSet);
+
+        // the range of every changed char, sorted and merged so each tile is matched once
+        float[][] ranges = new float[changedChars.size()][];
+        int numRanges = 0;
+        for (int c = changedChars.nextChar(0); c >= 0; c = changedChars.nextChar(c + 1)) {
+            float value = newTable.stretch(brightnessValues.get((char) c));
+            ranges[numRanges++] = new float[]{
+                    Math.max(table.getLowerValue(value), newTable.getLowerValue(value)),
+                    Math.min(table.getUpperValue(value), newTable.getUpperValue(value))};
+        }
+        Arrays.sort(ranges, Comparator.comparingDouble(range -> range[0]));
+
+        int[] tiles = getTilesByBucket();
+        long numMatched = 0;
+        for (int i = 0; i < numRanges; i++) {
+            float lower = ranges[i][0];
+            float upper = ranges[i][1];
+            while (i + 1 < numRanges && ranges[i + 1][0] <= upper){
+                upper = Math.max(upper, ranges[++i][1]);
+            }
+            // merged ranges are disjoint, so a bucket shared by two of them is split by values
+            for (int j = bucketStarts[getBucket(lower)]; j < bucketStarts[getBucket(upper) + 1];
+                 j++) {
+                float value = tileBrightness[tiles[j]];
+                if (value >= lower && value <= upper){
+                    matchTile(tiles[j], newTable);
+                    numMatched++;
+                }
+            }
+        }
+        return numMatched;
+    }
+
+    /**
+     * Matches a single tile with the given table
+     * @param tile index of the tile
+     * @param newTable lookup table of the char set
+     */
+    private void matchTile(int tile, BrightnessCharTable newTable){
+        fittedChars[tile / numCharsInRow][tile % numCharsInRow] =
+                newTable.getMostFittedCharacter(tileBrightness[tile]);
+    }
+
+    /**
+     * Returns the tiles grouped by the bucket of their values, grouping them on the first call
+     * in a single counting pass. The tiles of bucket b are found between bucketStarts[b] and
+     * bucketStarts[b + 1].
+     * @return the indices of the tiles, ordered by their buckets
+     */
+    private int[] getTilesByBucket(){
+        if (tilesByBucket == null){
+            bucketStarts = new int[NUM_BUCKETS + 1];
+            for (float value : tileBrightness) {
+                bucketStarts[getBucket(value) + 1]++;
+            }
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                bucketStarts[bucket + 1] += bucketStarts[bucket];
+            }
+            int[] nextInBucket = Arrays.copyOf(bucketStarts, NUM_BUCKETS);
+            tilesByBucket = new int[tileBrightness.length];
+            for (int tile = 0; tile < tileBrightness.length; tile++) {
+                tilesByBucket[nextInBucket[getBucket(tileBrightness[tile])]++] = tile;
+            }
+        }
+        return tilesByBucket;
+    }
+
+    /**
+     * Returns the bucket of a value, values outside of the grey range fall in the edge buckets
+     * @param value value of a tile or a bound of a range
+     * @return the bucket of the value
+     */
+    private static int getBucket(float value){
+        if (value <= 0){
+            return 0;
+        }
+        return value >= 1 ? NUM_BUCKETS - 1 : (int) (value * NUM_BUCKETS);
+    }
+}
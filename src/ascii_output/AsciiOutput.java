@@ -10,4 +10,13 @@ public interface AsciiOutput {
      * Output the specified 2D array of chars
      */
     void output(char[][] chars);
+
+    /**
+     * Output the specified 2D array of chars, each in the color of the same cell of colors.
+     * Outputs which cannot show colors output the chars alone.
+     * @param colors colors packed as 0xRRGGBB, one array for each row of chars
+     */
+    default void output(char[][] chars, int[][] colors) {
+        output(chars);
+    }
 }
@@ -0,0 +1,27 @@
+package ascii_output;
+
+/**
+ * An object implementing this interface outputs a 2D array of chars one row at a time,
+ * so the whole array never has to be held in memory.
+ */
+public interface AsciiRowWriter extends AutoCloseable {
+    /**
+     * Output the next row of chars. The row is not kept, so the caller may reuse it.
+     */
+    void writeRow(char[] row);
+
+    /**
+     * Output the next row of chars, each in the color of the same cell of colors. Writers which
+     * cannot show colors output the chars alone. Neither array is kept.
+     * @param colors colors packed as 0xRRGGBB, one for each char of the row
+     */
+    default void writeRow(char[] row, int[] colors) {
+        writeRow(row);
+    }
+
+    /**
+     * Finish the output after the last row
+     */
+    @Override
+    void close();
+}
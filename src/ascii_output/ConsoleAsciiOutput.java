@@ -1,16 +1,130 @@
 package ascii_output;
 
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+
 /**
  * Output a 2D array of chars to the console.
+ * Each frame is built in a single reusable char buffer and printed with one call.
+ * Colored chars are printed with ANSI escapes of the 256 color palette, and an escape is only
+ * printed when the color changes, even across rows. Spaces draw nothing, so they never change
+ * the color.
  * @author Dan Nirel
  */public class ConsoleAsciiOutput implements AsciiOutput{
+    static final char CHAR_SEPARATOR = ' ';
+    static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+    private static final char[] COLOR_ESCAPE_START = "\u001b[38;5;".toCharArray();
+    private static final char COLOR_ESCAPE_END = 'm';
+    static final char[] RESET_ESCAPE = "\u001b[0m".toCharArray();
+    private static final int MAX_INDEX_DIGITS = 3;
+    static final int MAX_COLOR_ESCAPE_LENGTH =
+            COLOR_ESCAPE_START.length + MAX_INDEX_DIGITS + 1;
+    private static final int DECIMAL_BASE = 10;
+    static final int NO_COLOR = -1;
+
+    private final PrintStream out;
+    private char[] frameBuffer = new char[0];
+
+    public ConsoleAsciiOutput() {
+        this(System.out);
+    }
+
+    /**
+     * @param out stream the frames are printed to
+     */
+    public ConsoleAsciiOutput(PrintStream out) {
+        this.out = out;
+    }
+
     @Override
     public void output(char[][] chars) {
-        for (int y = 0; y < chars.length ; y++) {
-            for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.OUTPUT);
+        int frameLength = 0;
+        for (char[] row : chars) {
+            frameLength += row.length * 2 + LINE_SEPARATOR.length;
+        }
+        if (frameBuffer.length < frameLength) {
+            frameBuffer = new char[frameLength];
+        }
+        int position = 0;
+        for (char[] row : chars) {
+            for (char c : row) {
+                frameBuffer[position++] = c;
+                frameBuffer[position++] = CHAR_SEPARATOR;
             }
-            System.out.println();
+            System.arraycopy(LINE_SEPARATOR, 0, frameBuffer, position, LINE_SEPARATOR.length);
+            position += LINE_SEPARATOR.length;
+        }
+        out.append(CharBuffer.wrap(frameBuffer, 0, frameLength));
+        out.flush();
+        timer.stop(frameLength);
+    }
+
+    @Override
+    public void output(char[][] chars, int[][] colors) {
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.OUTPUT);
+        int maxFrameLength = RESET_ESCAPE.length;
+        for (char[] row : chars) {
+            maxFrameLength += row.length * (2 + MAX_COLOR_ESCAPE_LENGTH) + LINE_SEPARATOR.length;
+        }
+        if (frameBuffer.length < maxFrameLength) {
+            frameBuffer = new char[maxFrameLength];
+        }
+        int position = 0;
+        int currentColor = NO_COLOR;
+        for (int row = 0; row < chars.length; row++) {
+            for (int col = 0; col < chars[row].length; col++) {
+                int color = PackedColors.toAnsiIndex(colors[row][col]);
+                if (color != currentColor && !PackedColors.isInvisible(chars[row][col])) {
+                    position = putColorEscape(frameBuffer, position, color);
+                    currentColor = color;
+                }
+                frameBuffer[position++] = chars[row][col];
+                frameBuffer[position++] = CHAR_SEPARATOR;
+            }
+            System.arraycopy(LINE_SEPARATOR, 0, frameBuffer, position, LINE_SEPARATOR.length);
+            position += LINE_SEPARATOR.length;
+        }
+        System.arraycopy(RESET_ESCAPE, 0, frameBuffer, position, RESET_ESCAPE.length);
+        position += RESET_ESCAPE.length;
+        out.append(CharBuffer.wrap(frameBuffer, 0, position));
+        out.flush();
+        timer.stop(position);
+    }
+
+    /**
+     * Writes the escape which sets the color of the following chars to a frame buffer
+     * @param buffer frame buffer
+     * @param position position in the buffer to write the escape at
+     * @param color index of the color in the 256 color palette
+     * @return the position after the escape
+     */
+    static int putColorEscape(char[] buffer, int position, int color) {
+        System.arraycopy(COLOR_ESCAPE_START, 0, buffer, position, COLOR_ESCAPE_START.length);
+        position = putDecimal(buffer, position + COLOR_ESCAPE_START.length, color);
+        buffer[position++] = COLOR_ESCAPE_END;
+        return position;
+    }
+
+    /**
+     * Writes the decimal digits of a number to a frame buffer
+     * @param buffer frame buffer
+     * @param position position in the buffer to write the digits at
+     * @param value non negative number
+     * @return the position after the digits
+     */
+    static int putDecimal(char[] buffer, int position, int value) {
+        int divisor = 1;
+        while (divisor <= value / DECIMAL_BASE) {
+            divisor *= DECIMAL_BASE;
+        }
+        for (; divisor > 0; divisor /= DECIMAL_BASE) {
+            buffer[position++] = (char) ('0' + value / divisor % DECIMAL_BASE);
         }
+        return position;
     }
 }
@@ -0,0 +1,214 @@
+package ascii_output;
+
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Output a 2D array of chars to an ANSI terminal, redrawing only what changed since the last
+ * frame. The first frame, and every frame whose size differs from the last one, clears the screen
+ * and is drawn whole from its top left corner. Every later frame moves the cursor to each run of
+ * changed cells and prints only the run, where changed cells separated by a few unchanged ones
+ * share a run since reprinting them is shorter than moving the cursor again. After every frame the
+ * cursor is left on the line below it and the rest of the screen is erased, so the frame must fit
+ * in the terminal for the next frames to be drawn over it.
+ * @author Eliyahu Tamarkin
+ */
+public class DiffConsoleAsciiOutput implements AsciiOutput {
+    private static final char[] CLEAR_SCREEN = "\u001b[H\u001b[2J".toCharArray();
+    private static final char[] ERASE_BELOW = "\u001b[J".toCharArray();
+    private static final char[] CURSOR_ESCAPE_START = "\u001b[".toCharArray();
+    private static final char CURSOR_SEPARATOR = ';';
+    private static final char CURSOR_ESCAPE_END = 'H';
+    private static final int MAX_INT_DIGITS = 10;
+    private static final int MAX_CURSOR_ESCAPE_LENGTH =
+            CURSOR_ESCAPE_START.length + 2 * MAX_INT_DIGITS + 2;
+    private static final int MAX_CELL_LENGTH = ConsoleAsciiOutput.MAX_COLOR_ESCAPE_LENGTH + 2;
+    // unchanged cells printed between two changed cells take 2 chars each, about as many as a
+    // cursor escape to skip them would
+    private static final int MAX_REPRINTED_GAP = 3;
+    private static final int COLUMNS_PER_CELL = 2;
+
+    private final PrintStream out;
+    private char[] frameBuffer = new char[0];
+    private int position;
+    // chars and palette indexes of the last frame, NO_COLOR for a frame without colors
+    private char[][] lastChars;
+    private int[][] lastColors;
+
+    public DiffConsoleAsciiOutput() {
+        this(System.out);
+    }
+
+    /**
+     * @param out stream the frames are printed to, which must be shown on an ANSI terminal
+     */
+    public DiffConsoleAsciiOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Forgets the last frame, so the next one clears the screen and is drawn whole. Should be
+     * called when anything else may have been printed over the last frame.
+     */
+    public void reset() {
+        lastChars = null;
+        lastColors = null;
+    }
+
+    @Override
+    public void output(char[][] chars) {
+        outputFrame(chars, null);
+    }
+
+    @Override
+    public void output(char[][] chars, int[][] colors) {
+        outputFrame(chars, colors);
+    }
+
+    /**
+     * Prints the changes from the last frame to the given one and keeps it as the last frame
+     * @param chars chars of the frame
+     * @param colors colors of the chars packed as 0xRRGGBB, or null for a frame without colors
+     */
+    private void outputFrame(char[][] chars, int[][] colors) {
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.OUTPUT);
+        boolean redraw = !hasSameSize(chars);
+        if (redraw) {
+            lastChars = new char[chars.length][];
+            lastColors = new int[chars.length][];
+            for (int row = 0; row < chars.length; row++) {
+                lastChars[row] = new char[chars[row].length];
+                lastColors[row] = new int[chars[row].length];
+            }
+        }
+        position = 0;
+        if (redraw) {
+            ensureCapacity(CLEAR_SCREEN.length);
+            System.arraycopy(CLEAR_SCREEN, 0, frameBuffer, position, CLEAR_SCREEN.length);
+            position += CLEAR_SCREEN.length;
+        }
+        int currentColor = ConsoleAsciiOutput.NO_COLOR;
+        for (int row = 0; row < chars.length; row++) {
+            currentColor = putChangedRuns(row, chars[row], colors == null ? null : colors[row],
+                    redraw, currentColor);
+        }
+        ensureCapacity(ConsoleAsciiOutput.RESET_ESCAPE.length + MAX_CURSOR_ESCAPE_LENGTH +
+                ERASE_BELOW.length);
+        if (currentColor != ConsoleAsciiOutput.NO_COLOR) {
+            System.arraycopy(ConsoleAsciiOutput.RESET_ESCAPE, 0, frameBuffer, position,
+                    ConsoleAsciiOutput.RESET_ESCAPE.length);
+            position += ConsoleAsciiOutput.RESET_ESCAPE.length;
+        }
+        putCursorEscape(chars.length, 0);
+        System.arraycopy(ERASE_BELOW, 0, frameBuffer, position, ERASE_BELOW.length);
+        position += ERASE_BELOW.length;
+        out.append(CharBuffer.wrap(frameBuffer, 0, position));
+        out.flush();
+        timer.stop(position);
+    }
+
+    /**
+     * Checks whether a frame has the same number of rows and columns as the last frame
+     * @param chars chars of the frame
+     * @return true if there is a last frame of the same size
+     */
+    private boolean hasSameSize(char[][] chars) {
+        if (lastChars == null || lastChars.length != chars.length) {
+            return false;
+        }
+        for (int row = 0; row < chars.length; row++) {
+            if (lastChars[row].length != chars[row].length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the runs of changed cells of a row to the frame buffer, each after a cursor escape
+     * to its first cell, and copies the row into the last frame
+     * @param row index of the row
+     * @param rowChars chars of the row
+     * @param rowColors packed colors of the row, or null for a row without colors
+     * @param redraw true to write the whole row whatever the last frame holds
+     * @param currentColor palette index the terminal currently prints with, or NO_COLOR
+     * @return the palette index the terminal prints with after the row
+     */
+    private int putChangedRuns(int row, char[] rowChars, int[] rowColors, boolean redraw,
+                               int currentColor) {
+        int[] ansiColors = lastColors[row];
+        int runEnd = -1;
+        for (int col = 0; col < rowChars.length; col++) {
+            int color = rowColors == null ? ConsoleAsciiOutput.NO_COLOR :
+                    PackedColors.toAnsiIndex(rowColors[col]);
+            if (!redraw && !isChanged(rowChars[col], color, lastChars[row][col],
+                    ansiColors[col])) {
+                continue;
+            }
+            lastChars[row][col] = rowChars[col];
+            ansiColors[col] = color;
+            // the unchanged cells since the end of the last run are either reprinted or skipped
+            boolean newRun = runEnd < 0 || col - runEnd > MAX_REPRINTED_GAP;
+            if (newRun) {
+                ensureCapacity(MAX_CURSOR_ESCAPE_LENGTH);
+                putCursorEscape(row, col * COLUMNS_PER_CELL);
+            }
+            for (int i = newRun ? col : runEnd; i <= col; i++) {
+                ensureCapacity(MAX_CELL_LENGTH);
+                if (ansiColors[i] != currentColor && !PackedColors.isInvisible(rowChars[i])) {
+                    position = ConsoleAsciiOutput.putColorEscape(frameBuffer, position,
+                            ansiColors[i]);
+                    currentColor = ansiColors[i];
+                }
+                frameBuffer[position++] = rowChars[i];
+                frameBuffer[position++] = ConsoleAsciiOutput.CHAR_SEPARATOR;
+            }
+            runEnd = col + 1;
+        }
+        return currentColor;
+    }
+
+    /**
+     * Checks whether a cell looks different from the same cell in the last frame. The color of
+     * a char which draws nothing does not matter.
+     * @param c char of the cell
+     * @param color palette index of the cell, or NO_COLOR
+     * @param lastChar char of the cell in the last frame
+     * @param lastColor palette index of the cell in the last frame, or NO_COLOR
+     * @return true if the cell has to be printed again
+     */
+    private static boolean isChanged(char c, int color, char lastChar, int lastColor) {
+        return c != lastChar || (color != lastColor && !PackedColors.isInvisible(c));
+    }
+
+    /**
+     * Writes the escape which moves the cursor to a position on the screen to the frame buffer
+     * @param row zero based row of the screen
+     * @param column zero based column of the screen
+     */
+    private void putCursorEscape(int row, int column) {
+        System.arraycopy(CURSOR_ESCAPE_START, 0, frameBuffer, position,
+                CURSOR_ESCAPE_START.length);
+        position = ConsoleAsciiOutput.putDecimal(frameBuffer,
+                position + CURSOR_ESCAPE_START.length, row + 1);
+        frameBuffer[position++] = CURSOR_SEPARATOR;
+        position = ConsoleAsciiOutput.putDecimal(frameBuffer, position, column + 1);
+        frameBuffer[position++] = CURSOR_ESCAPE_END;
+    }
+
+    /**
+     * Grows the frame buffer, keeping its content, so it has room for more chars
+     * @param numChars number of chars about to be written at the current position
+     */
+    private void ensureCapacity(int numChars) {
+        if (position + numChars > frameBuffer.length) {
+            frameBuffer = Arrays.copyOf(frameBuffer,
+                    Math.max(position + numChars, 2 * frameBuffer.length));
+        }
+    }
+}
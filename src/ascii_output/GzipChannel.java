@@ -0,0 +1,210 @@
+package ascii_output;
+
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A channel which gzips the bytes written to it into another channel as they arrive, so the
+ * output is never held uncompressed. The bytes are either compressed on the writing thread, or
+ * copied into a few reusable chunks which a compressing thread of the channel takes in order,
+ * so the writer can go on while the previous chunks are compressed.
+ * @author Eliyahu Tamarkin
+ */
+final class GzipChannel implements WritableByteChannel {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int NUM_CHUNKS = 4;
+    private static final ByteBuffer END_OF_CHUNKS = ByteBuffer.allocate(0);
+    private static final String COMPRESSOR_NAME = "gzip-compressor";
+
+    private final WritableByteChannel target;
+    private final GZIPOutputStream gzip;
+    private final byte[] chunk;
+    private final BlockingQueue<ByteBuffer> filledChunks;
+    private final BlockingQueue<ByteBuffer> freeChunks;
+    private final Thread compressor;
+    private volatile IOException failure;
+    private boolean open = true;
+
+    /**
+     * Constructs a new GzipChannel instance, the gzip header is written right away
+     * @param target channel the compressed bytes are written to, closed with this channel
+     * @param level compression level, from 0 (no compression) to 9 (best compression)
+     * @param compressInBackground true to compress on a thread of the channel, false to
+     *                             compress on the writing thread
+     * @throws IOException in case writing the header failed, the target is closed
+     */
+    GzipChannel(WritableByteChannel target, int level, boolean compressInBackground)
+            throws IOException {
+        this.target = target;
+        try {
+            gzip = new GZIPOutputStream(Channels.newOutputStream(target), CHUNK_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            target.close();
+            throw e;
+        }
+        if (!compressInBackground) {
+            chunk = new byte[CHUNK_SIZE];
+            filledChunks = null;
+            freeChunks = null;
+            compressor = null;
+            return;
+        }
+        chunk = null;
+        filledChunks = new ArrayBlockingQueue<>(NUM_CHUNKS + 1);
+        freeChunks = new ArrayBlockingQueue<>(NUM_CHUNKS);
+        for (int i = 0; i < NUM_CHUNKS; i++) {
+            freeChunks.add(ByteBuffer.allocate(CHUNK_SIZE));
+        }
+        compressor = new Thread(this::compressChunks, COMPRESSOR_NAME);
+        compressor.setDaemon(true);
+        compressor.start();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        throwFailure();
+        int numBytes = src.remaining();
+        if (compressor == null) {
+            StageTimer timer = RenderStats.getInstance().start(RenderStage.COMPRESS);
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, length);
+                gzip.write(chunk, 0, length);
+            }
+            timer.stop(numBytes);
+            return numBytes;
+        }
+        try {
+            while (src.hasRemaining()) {
+                ByteBuffer next = freeChunks.take();
+                int length = Math.min(src.remaining(), next.remaining());
+                int srcLimit = src.limit();
+                src.limit(src.position() + length);
+                next.put(src);
+                src.limit(srcLimit);
+                next.flip();
+                filledChunks.put(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing output to compress");
+        }
+        return numBytes;
+    }
+
+    /**
+     * Compressing thread, compresses the filled chunks in order until it takes the end marker
+     * and then finishes the stream. Once compressing fails the rest of the chunks are dropped,
+     * and the failure is thrown to the writing thread.
+     */
+    private void compressChunks() {
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.COMPRESS);
+        long numBytes = 0;
+        try {
+            timer.pause();
+            for (ByteBuffer next = filledChunks.take(); next != END_OF_CHUNKS;
+                 next = filledChunks.take()) {
+                timer.resume();
+                if (failure == null) {
+                    try {
+                        gzip.write(next.array(), 0, next.limit());
+                        numBytes += next.limit();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                next.clear();
+                freeChunks.put(next);
+                timer.pause();
+            }
+            timer.resume();
+            finish();
+        } catch (InterruptedException e) {
+            // the end marker will never be taken, so the target is closed here
+            failure = new InterruptedIOException("Compressing thread was interrupted");
+            finish();
+        } finally {
+            timer.stop(numBytes);
+        }
+    }
+
+    /**
+     * Writes the end of the gzip stream unless writing already failed, and closes the target
+     */
+    private void finish() {
+        try {
+            if (failure == null) {
+                gzip.close();
+            }
+            else {
+                target.close();
+            }
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException the failure of the compressing thread, if it failed
+     */
+    private void throwFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Failed to compress output", e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Waits until all the written bytes were compressed, then writes the end of the gzip
+     * stream and closes the target
+     * @throws IOException in case compressing or writing any of the bytes failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (compressor == null) {
+            StageTimer timer = RenderStats.getInstance().start(RenderStage.COMPRESS);
+            finish();
+            timer.stop(0);
+            throwFailure();
+            return;
+        }
+        try {
+            filledChunks.put(END_OF_CHUNKS);
+            compressor.join();
+        } catch (InterruptedException e) {
+            compressor.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing compressed output");
+        }
+        throwFailure();
+    }
+}
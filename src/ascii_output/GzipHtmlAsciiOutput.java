@@ -0,0 +1,40 @@
+package ascii_output;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Output a 2D array of chars to a gzip compressed HTML file, which browsers open like the
+ * uncompressed file when it is served with a gzip content encoding. The HTML is compressed while
+ * it is written, either on the writing thread or on a thread of its own so matching the next rows
+ * and compressing the previous ones overlap.
+ * @author Eliyahu Tamarkin
+ */
+public class GzipHtmlAsciiOutput extends HtmlAsciiOutput {
+    private final int level;
+    private final boolean compressInBackground;
+
+    /**
+     * @param filename path of the compressed file
+     * @param fontName font family of the chars
+     * @param level compression level, from 0 (no compression) to 9 (best compression)
+     * @param compressInBackground true to compress on a thread of every output file, false to
+     *                             compress on the thread writing the rows
+     */
+    public GzipHtmlAsciiOutput(String filename, String fontName, int level,
+                               boolean compressInBackground) {
+        super(filename, fontName);
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("compression level must be %d to %d",
+                    Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION));
+        }
+        this.level = level;
+        this.compressInBackground = compressInBackground;
+    }
+
+    @Override
+    protected WritableByteChannel openChannel(String filename) throws IOException {
+        return new GzipChannel(super.openChannel(filename), level, compressInBackground);
+    }
+}
@@ -1,30 +1,166 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Logger;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * The chars are escaped straight into a byte buffer which is written to the file whenever it
+ * fills up. The buffer is kept for the next output, so an output rendered again and again reuses
+ * a single buffer. The HTML can be written to a channel instead of a file, to be served
+ * without being saved. Colored chars are wrapped in spans, and consecutive chars whose colors
+ * are the same after quantizing them to 4 levels per channel share a single span, even across
+ * rows. Spaces draw nothing, so they never end a span.
  * @author Dan Nirel
  */
 public class HtmlAsciiOutput implements AsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_CHAR_BYTES = 8; // "&#65535;"
+    private static final int MAX_ASCII_CHAR = 0x7F;
+    private static final byte[] SPAN_START = "<span style=\"color:#".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SPAN_START_END = "\">".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SPAN_END = "</span>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int SHORT_HEX_DIGITS = 3;
+    private static final int HEX_DIGIT_BITS = 4;
+    private static final int HEX_DIGIT_MASK = 0xF;
+    private static final int MAX_SPAN_START_BYTES =
+            SPAN_START.length + SHORT_HEX_DIGITS + SPAN_START_END.length;
+    private static final int MIN_BUFFER_SIZE = MAX_SPAN_START_BYTES;
+    private static final int NO_SPAN = -1;
+    private static final byte[] LINE_SEPARATOR =
+            System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LT = "&lt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GT = "&gt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMP = "&amp;".getBytes(StandardCharsets.US_ASCII);
 
     private final String fontName;
     private final String filename;
+    private final WritableByteChannel target;
+    private final int bufferSize;
+    // buffer of the last closed writer, taken by the next one
+    private ByteBuffer spareBuffer;
 
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize size in bytes of the buffer the file is written through
+     */
+    public HtmlAsciiOutput(String filename, String fontName, int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("buffer size must be at least " + MIN_BUFFER_SIZE);
+        }
         this.fontName = fontName;
         this.filename = filename;
+        this.target = null;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param target channel the output is written to, it is closed after the last row. Only a
+     *               single output can be written to it.
+     */
+    public HtmlAsciiOutput(WritableByteChannel target, String fontName) {
+        this.fontName = fontName;
+        this.filename = null;
+        this.target = target;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
     }
 
     @Override
     public void output(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write(String.format(
+        try(AsciiRowWriter writer = openRows(chars[0].length)) {
+            for (char[] row : chars) {
+                writer.writeRow(row);
+            }
+        }
+    }
+
+    @Override
+    public void output(char[][] chars, int[][] colors) {
+        try(AsciiRowWriter writer = openRows(chars[0].length)) {
+            for (int row = 0; row < chars.length; row++) {
+                writer.writeRow(chars[row], colors[row]);
+            }
+        }
+    }
+
+    /**
+     * Start writing a file whose rows are provided one at a time
+     * @param numCols number of chars in each row
+     * @return a writer accepting the rows in order, which must be closed after the last row
+     */
+    public AsciiRowWriter openRows(int numCols) {
+        return new HtmlRowWriter(numCols);
+    }
+
+    /**
+     * Takes the buffer of the last closed writer, or allocates a new one if another writer has it
+     * or there was none
+     * @return an empty buffer
+     */
+    private synchronized ByteBuffer takeBuffer() {
+        ByteBuffer buffer = spareBuffer;
+        spareBuffer = null;
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Keeps the buffer of a closed writer for the next one
+     * @param buffer buffer which is no longer used
+     */
+    private synchronized void returnBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        spareBuffer = buffer;
+    }
+
+    /**
+     * Opens the channel the file is written through, called once for every output
+     * @param filename path of the file
+     * @return the opened channel, closed after the last row
+     * @throws IOException in case the file could not be opened
+     */
+    protected WritableByteChannel openChannel(String filename) throws IOException {
+        return FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes the rows of a single file. An IO failure is logged once and the rest of the
+     * output is dropped. The output stage is only timed while the writer is working, not
+     * while the rows are being produced.
+     */
+    private class HtmlRowWriter implements AsciiRowWriter {
+        private final ByteBuffer buffer = takeBuffer();
+        private final StageTimer timer = RenderStats.getInstance().start(RenderStage.OUTPUT);
+        private WritableByteChannel channel;
+        private long numCharsWritten;
+        // quantized color of the open span, or NO_SPAN
+        private int spanColor = NO_SPAN;
+
+        HtmlRowWriter(int numCols) {
+            try {
+                channel = target != null ? target : openChannel(filename);
+            } catch(IOException e) {
+                fail();
+                timer.pause();
+                return;
+            }
+            writeBytes(String.format(
                 "<!DOCTYPE html>\n"+
                 "<html>\n"+
                 "<body style=\""+
@@ -37,27 +173,167 @@ public class HtmlAsciiOutput implements AsciiOutput {
                     "\tFONT-SIZE:%frem;"+
                     "\tLETTER-SPACING:0.15em;"+
                     "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
-                    }
-                    writer.write(htmlRep);
+                    fontName, BASE_FONT_SIZE/numCols, BASE_LINE_SPACING)
+                    .getBytes(StandardCharsets.UTF_8));
+            timer.pause();
+        }
+
+        @Override
+        public void writeRow(char[] row) {
+            timer.resume();
+            endSpan();
+            for (char c : row) {
+                putChar(c);
+            }
+            writeBytes(LINE_SEPARATOR);
+            numCharsWritten += row.length;
+            timer.pause();
+        }
+
+        @Override
+        public void writeRow(char[] row, int[] colors) {
+            timer.resume();
+            for (int i = 0; i < row.length; i++) {
+                int color = PackedColors.toShortHex(colors[i]);
+                if (color != spanColor && !PackedColors.isInvisible(row[i])) {
+                    endSpan();
+                    putSpanStart(color);
+                    spanColor = color;
                 }
-                writer.newLine();
+                putChar(row[i]);
             }
-            writer.write(
-                "</p>\n"+
+            writeBytes(LINE_SEPARATOR);
+            numCharsWritten += row.length;
+            timer.pause();
+        }
+
+        @Override
+        public void close() {
+            timer.resume();
+            endSpan();
+            writeBytes(
+                ("</p>\n"+
                 "</body>\n"+
-                "</html>\n");
-        } catch(IOException e) {
-            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+                "</html>\n").getBytes(StandardCharsets.US_ASCII));
+            flush();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch(IOException e) {
+                    fail();
+                }
+            }
+            returnBuffer(buffer);
+            timer.stop(numCharsWritten);
+        }
+
+        /**
+         * Writes a single char, escaped as HTML needs it
+         * @param c char to write
+         */
+        private void putChar(char c) {
+            if (buffer.remaining() < MAX_CHAR_BYTES) {
+                flush();
+            }
+            switch(c) {
+                case '<': buffer.put(LT);  break;
+                case '>': buffer.put(GT);  break;
+                case '&': buffer.put(AMP); break;
+                default:
+                    if (c <= MAX_ASCII_CHAR) {
+                        buffer.put((byte) c);
+                    } else {
+                        putCharReference(c);
+                    }
+            }
+        }
+
+        /**
+         * Opens a span of the given color
+         * @param color quantized color, packed as 0xRGB
+         */
+        private void putSpanStart(int color) {
+            if (buffer.remaining() < MAX_SPAN_START_BYTES) {
+                flush();
+            }
+            buffer.put(SPAN_START);
+            for (int digit = SHORT_HEX_DIGITS - 1; digit >= 0; digit--) {
+                buffer.put(HEX_DIGITS[(color >> (digit * HEX_DIGIT_BITS)) & HEX_DIGIT_MASK]);
+            }
+            buffer.put(SPAN_START_END);
+        }
+
+        /**
+         * Closes the open span, if there is one
+         */
+        private void endSpan() {
+            if (spanColor != NO_SPAN) {
+                writeBytes(SPAN_END);
+                spanColor = NO_SPAN;
+            }
+        }
+
+        /**
+         * Writes a char outside of ASCII as a numeric character reference
+         * @param c char to write
+         */
+        private void putCharReference(char c) {
+            buffer.put((byte) '&').put((byte) '#');
+            String code = Integer.toString(c);
+            for (int i = 0; i < code.length(); i++) {
+                buffer.put((byte) code.charAt(i));
+            }
+            buffer.put((byte) ';');
+        }
+
+        /**
+         * Adds the given bytes to the buffer, flushing it as needed
+         * @param bytes to add
+         */
+        private void writeBytes(byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Writes the buffered bytes to the file and empties the buffer
+         */
+        private void flush() {
+            buffer.flip();
+            if (channel != null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch(IOException e) {
+                    fail();
+                }
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Logs the failure and drops the rest of the output
+         */
+        private void fail() {
+            Logger.getGlobal().severe(filename != null ?
+                    String.format("Failed to write to \"%s\"", filename) :
+                    "Failed to write the HTML output");
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch(IOException ignored) {
+                    // already reported
+                }
+            }
+            channel = null;
         }
     }
 }
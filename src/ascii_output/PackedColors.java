@@ -0,0 +1,81 @@
+package ascii_output;
+
+/**
+ * Quantizes colors packed as 0xRRGGBB for the colored outputs. Cells whose colors are the same
+ * after quantization are written as a single run, so the coarser the palette the fewer color
+ * changes an output has.
+ */
+final class PackedColors {
+    private static final char SPACE = ' ';
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int MAX_CHANNEL = 0xFF;
+    private static final int HTML_LEVELS = 4;
+    private static final int MAX_HEX_DIGIT = 0xF;
+    private static final int HEX_DIGIT_BITS = 4;
+    // the levels of the 6x6x6 color cube of the 256 color ANSI palette are 0, 95, 135, ..., 255
+    private static final int CUBE_LEVELS = 6;
+    private static final int CUBE_FIRST_INDEX = 16;
+    private static final int CUBE_FIRST_STEP = 48;
+    private static final int CUBE_SECOND_STEP = 115;
+    private static final int CUBE_OFFSET = 35;
+    private static final int CUBE_STEP = 40;
+
+    private PackedColors() {
+    }
+
+    /**
+     * Quantizes a color to 4 levels per channel, spread over the digits of the short "#rgb" CSS
+     * notation. Coarser levels than the notation allows make longer runs of the same color.
+     * @param rgb color packed as 0xRRGGBB
+     * @return the quantized color packed as 0xRGB
+     */
+    static int toShortHex(int rgb) {
+        return toHexDigit(rgb >> RED_SHIFT) << (2 * HEX_DIGIT_BITS) |
+                toHexDigit(rgb >> GREEN_SHIFT) << HEX_DIGIT_BITS | toHexDigit(rgb);
+    }
+
+    /**
+     * Quantizes a color to the closest color of the 6x6x6 cube of the 256 color ANSI palette
+     * @param rgb color packed as 0xRRGGBB
+     * @return the index of the color in the palette
+     */
+    static int toAnsiIndex(int rgb) {
+        return CUBE_FIRST_INDEX + toCubeLevel(rgb >> RED_SHIFT) * CUBE_LEVELS * CUBE_LEVELS +
+                toCubeLevel(rgb >> GREEN_SHIFT) * CUBE_LEVELS + toCubeLevel(rgb);
+    }
+
+    /**
+     * Returns whether a char draws nothing, so its color does not matter and it can extend the
+     * run of any color
+     * @param c char to check
+     * @return true if the char is a space and false otherwise
+     */
+    static boolean isInvisible(char c) {
+        return c == SPACE;
+    }
+
+    /**
+     * @param channel channel value in its lowest 8 bits
+     * @return the channel rounded to the closest of the HTML levels, as a hex digit
+     */
+    private static int toHexDigit(int channel) {
+        int level = ((channel & MAX_CHANNEL) * (HTML_LEVELS - 1) + MAX_CHANNEL / 2) / MAX_CHANNEL;
+        return level * MAX_HEX_DIGIT / (HTML_LEVELS - 1);
+    }
+
+    /**
+     * @param channel channel value in its lowest 8 bits
+     * @return the closest level of the color cube, between 0 and 5
+     */
+    private static int toCubeLevel(int channel) {
+        int value = channel & MAX_CHANNEL;
+        if (value < CUBE_FIRST_STEP) {
+            return 0;
+        }
+        if (value < CUBE_SECOND_STEP) {
+            return 1;
+        }
+        return (value - CUBE_OFFSET) / CUBE_STEP;
+    }
+}
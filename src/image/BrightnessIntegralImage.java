@@ -0,0 +1,83 @@
+package image;
+
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+/**
+ * Summed-area table of the grey values of an image. Built once in a single pass over the pixels,
+ * after which the average grey value of any rectangle of the image takes four lookups.
+ * The grey factors are kept as scaled integers so the sums are exact.
+ */
+public class BrightnessIntegralImage {
+    private static final int MAX_RGB = 255;
+    static final long RED_FOR_GREY_FACTOR = 2126;
+    static final long GREEN_FOR_GREY_FACTOR = 7152;
+    static final long BLUE_FOR_GREY_FACTOR = 722;
+    private static final long GREY_FACTORS_SCALE = 10000;
+    // the grey factors add up to the scale, so this is the scaled grey value of a white pixel
+    static final long MAX_SCALED_GREY_VALUE = MAX_RGB * GREY_FACTORS_SCALE;
+
+    private final int rowLength;
+    private final long[] sums;
+
+    /**
+     * Constructs a new BrightnessIntegralImage instance
+     * @param image to build the table for
+     */
+    public BrightnessIntegralImage(Image image){
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.BRIGHTNESS_TABLE);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        this.rowLength = width + 1;
+        this.sums = new long[(height + 1) * rowLength];
+        LuminanceKernel kernel = LuminanceKernel.getInstance();
+        int[] rgbRow = new int[width];
+        int[] greyRow = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRowRGB(0, y, width, rgbRow);
+            kernel.toScaledGrey(rgbRow, 0, width, greyRow);
+            long rowSum = 0;
+            for (int x = 0; x < width; x++) {
+                rowSum += greyRow[x];
+                sums[(y + 1) * rowLength + x + 1] = sums[y * rowLength + x + 1] + rowSum;
+            }
+        }
+        timer.stop((long) width * height);
+    }
+
+    /**
+     * Returns the average grey value of the given rectangle of the image
+     * @param x col of the top left corner of the rectangle
+     * @param y row of the top left corner of the rectangle
+     * @param width width of the rectangle
+     * @param height height of the rectangle
+     * @return the average grey value, between 0 (black) and 1 (white)
+     */
+    public float getAverageBrightness(int x, int y, int width, int height){
+        long total = sums[(y + height) * rowLength + x + width] - sums[y * rowLength + x + width]
+                - sums[(y + height) * rowLength + x] + sums[y * rowLength + x];
+        return toBrightness(total, (long) width * height);
+    }
+
+    /**
+     * Converts a sum of scaled grey values to their average grey value
+     * @param scaledGreySum sum of the scaled grey values of the pixels
+     * @param numPixels number of pixels summed
+     * @return the average grey value, between 0 (black) and 1 (white)
+     */
+    static float toBrightness(long scaledGreySum, long numPixels){
+        return (float) ((double) scaledGreySum / (GREY_FACTORS_SCALE * MAX_RGB * numPixels));
+    }
+
+    /**
+     * Converts a packed pixel to its grey value multiplied by GREY_FACTORS_SCALE
+     * @param rgb packed ARGB value of the pixel
+     * @return the scaled grey value
+     */
+    static long getScaledGreyValue(int rgb){
+        return ((rgb >> 16) & MAX_RGB) * RED_FOR_GREY_FACTOR +
+                ((rgb >> 8) & MAX_RGB) * GREEN_FOR_GREY_FACTOR +
+                (rgb & MAX_RGB) * BLUE_FOR_GREY_FACTOR;
+    }
+}
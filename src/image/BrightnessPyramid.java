@@ -0,0 +1,270 @@
+package image;
+
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import java.awt.*;
+
+/**
+ * Pyramid of the grey value sums of the image's square tiles, where level k holds the tiles of
+ * size 2^k. Levels are built lazily: the first requested level is built in a single pass over the
+ * pixels, and any coarser level is then built from the one below it by summing 2x2 tiles, so
+ * halving the resolution never reads the pixels again.
+ * The sums are kept as scaled integers, so the averages are identical to the ones of the
+ * brightness summed-area table. Levels of tiles small enough for their sums to fit in an int,
+ * up to 16x16, are stored as ints, since they are the largest levels: level k takes 4 bytes per
+ * 4^k pixels of the padded image while it fits in an int and 8 bytes per 4^k pixels above it.
+ */
+public class BrightnessPyramid {
+    // a tile whose sum fits in an int has at most this many pixels
+    private static final long MAX_INT_TILE_PIXELS =
+            Integer.MAX_VALUE / BrightnessIntegralImage.MAX_SCALED_GREY_VALUE;
+
+    private final Image image;
+    // every built level is held in exactly one of these, by whether its sums fit in an int
+    private final int[][] intLevels;
+    private final long[][] longLevels;
+
+    /**
+     * Constructs a new BrightnessPyramid instance with no levels built yet
+     * @param image to build the pyramid for
+     */
+    public BrightnessPyramid(Image image){
+        this.image = image;
+        int smallerSide = Math.min(image.getWidth(), image.getHeight());
+        int numLevels = Integer.SIZE - Integer.numberOfLeadingZeros(smallerSide);
+        this.intLevels = new int[numLevels][];
+        this.longLevels = new long[numLevels][];
+    }
+
+    /**
+     * Checks whether the sums of the tiles of the given size are stored as ints
+     * @param tileSize height and width of the tiles, a power of 2
+     * @return true if getIntTileSums returns the sums of the tiles, false if getTileSums does
+     */
+    static boolean hasIntSums(int tileSize){
+        return (long) tileSize * tileSize <= MAX_INT_TILE_PIXELS;
+    }
+
+    /**
+     * Returns the average grey value of a single tile
+     * @param tileSize height and width of the tiles, a power of 2
+     * @param row row of the tile in the grid of tiles
+     * @param col column of the tile in the grid of tiles
+     * @return the average grey value, between 0 (black) and 1 (white)
+     */
+    public float getAverageBrightness(int tileSize, int row, int col){
+        int tile = row * (image.getWidth() / tileSize) + col;
+        long tileSum = hasIntSums(tileSize) ? getIntTileSums(tileSize)[tile] :
+                getTileSums(tileSize)[tile];
+        return BrightnessIntegralImage.toBrightness(tileSum, (long) tileSize * tileSize);
+    }
+
+    /**
+     * Returns the grey value sums of all the tiles of the given size, row after row, building the
+     * level if needed. The returned array must not be modified.
+     * @param tileSize height and width of the tiles, a power of 2 for which hasIntSums is true
+     * @return the scaled grey value sums of the tiles
+     */
+    synchronized int[] getIntTileSums(int tileSize){
+        if (!hasIntSums(tileSize)){
+            throw new IllegalArgumentException("the sums of the tiles do not fit in an int");
+        }
+        return intLevels[getLevel(tileSize)];
+    }
+
+    /**
+     * Returns the grey value sums of all the tiles of the given size, row after row, building the
+     * level if needed. The returned array must not be modified.
+     * @param tileSize height and width of the tiles, a power of 2 for which hasIntSums is false
+     * @return the scaled grey value sums of the tiles
+     */
+    synchronized long[] getTileSums(int tileSize){
+        if (hasIntSums(tileSize)){
+            throw new IllegalArgumentException("the sums of the tiles are stored as ints");
+        }
+        return longLevels[getLevel(tileSize)];
+    }
+
+    /**
+     * Returns the level of the tiles of the given size, building it if needed
+     * @param tileSize height and width of the tiles, a power of 2
+     * @return the level of the tiles
+     */
+    private int getLevel(int tileSize){
+        if (Integer.bitCount(tileSize) != 1 || tileSize > image.getWidth() ||
+                tileSize > image.getHeight()){
+            throw new IllegalArgumentException("tile size must be a power of 2 inside the image");
+        }
+        int level = Integer.numberOfTrailingZeros(tileSize);
+        if (!isBuilt(level)){
+            int finerLevel = level - 1;
+            while (finerLevel >= 0 && !isBuilt(finerLevel)){
+                finerLevel--;
+            }
+            if (finerLevel < 0){
+                buildFromPixels(level);
+            }
+            for (int coarserLevel = finerLevel + 1; finerLevel >= 0 && coarserLevel <= level;
+                 coarserLevel++){
+                buildFromFinerLevel(coarserLevel);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * @param level level of the pyramid
+     * @return true if the level was built
+     */
+    private boolean isBuilt(int level){
+        return intLevels[level] != null || longLevels[level] != null;
+    }
+
+    /**
+     * Creates the array of the tile sums of a level, of ints if they fit in one
+     * @param level level to create
+     */
+    private void createLevel(int level){
+        int numTiles = (image.getWidth() >> level) * (image.getHeight() >> level);
+        if (hasIntSums(1 << level)){
+            intLevels[level] = new int[numTiles];
+        }
+        else {
+            longLevels[level] = new long[numTiles];
+        }
+    }
+
+    /**
+     * Stores the sums of a row of tiles in a level
+     * @param level level of the tiles
+     * @param row row of the tiles
+     * @param rowSums sums of the row's tiles
+     */
+    private void setRowSums(int level, int row, long[] rowSums){
+        int offset = row * rowSums.length;
+        if (intLevels[level] != null){
+            for (int col = 0; col < rowSums.length; col++) {
+                intLevels[level][offset + col] = (int) rowSums[col];
+            }
+        }
+        else {
+            System.arraycopy(rowSums, 0, longLevels[level], offset, rowSums.length);
+        }
+    }
+
+    /**
+     * @param level level of the tile, which must be built
+     * @param tile index of the tile in its level
+     * @return the sum of the tile
+     */
+    private long getTileSum(int level, int tile){
+        return intLevels[level] != null ? intLevels[level][tile] : longLevels[level][tile];
+    }
+
+    /**
+     * Builds a level by summing the grey values of the pixels of every tile, a row of tiles at a
+     * time. Only the pixels inside the image's content bounds are read, the padding is added per
+     * tile as a constant.
+     * @param level level to build
+     */
+    private void buildFromPixels(int level){
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.BRIGHTNESS_TABLE);
+        int tileSize = 1 << level;
+        int levelWidth = image.getWidth() >> level;
+        int levelHeight = image.getHeight() >> level;
+        createLevel(level);
+        Rectangle content = image.getContentBounds()
+                .intersection(new Rectangle(levelWidth << level, levelHeight << level));
+        long paddingGrey = getPaddingGrey(level, content);
+        long[] colContent = getContentPerTile(levelWidth, tileSize, content.x, content.width);
+        long[] rowContent = getContentPerTile(levelHeight, tileSize, content.y, content.height);
+        long tilePixels = (long) tileSize * tileSize;
+        LuminanceKernel kernel = LuminanceKernel.getInstance();
+        int[] rgbRow = new int[Math.max(0, content.width)];
+        long[] rowSums = new long[levelWidth];
+        for (int row = 0; row < levelHeight; row++) {
+            // the padding of a tile is added as a constant, tiles which are entirely padding
+            // get their whole sum at once
+            for (int col = 0; col < levelWidth; col++) {
+                rowSums[col] = (tilePixels - rowContent[row] * colContent[col]) * paddingGrey;
+            }
+            int fromY = Math.max(row * tileSize, content.y);
+            int toY = Math.min((row + 1) * tileSize, content.y + content.height);
+            for (int y = fromY; y < toY; y++) {
+                image.getRowRGB(content.x, y, content.width, rgbRow);
+                kernel.addTileSums(rgbRow, 0, content.width, content.x, tileSize, rowSums, 0,
+                        levelWidth);
+            }
+            setRowSums(level, row, rowSums);
+        }
+        timer.stop(Math.max(0, (long) content.width * content.height));
+    }
+
+    /**
+     * Returns the scaled grey value of the padding pixels, all of which have the same color
+     * @param level level of the tiles
+     * @param content bounds of the image's own pixels inside the tiles
+     * @return the scaled grey value of a padding pixel, or 0 if the tiles have no padding
+     */
+    private long getPaddingGrey(int level, Rectangle content){
+        int levelWidth = image.getWidth() >> level;
+        int levelHeight = image.getHeight() >> level;
+        if (content.width == levelWidth << level && content.height == levelHeight << level){
+            return 0;
+        }
+        // a pixel of the tiles outside of the content, which exists since the content is smaller
+        int paddingX = 0;
+        int paddingY = 0;
+        if (!content.isEmpty() && content.x == 0 && content.y == 0){
+            paddingX = content.width < levelWidth << level ? (levelWidth << level) - 1 : 0;
+            paddingY = content.width < levelWidth << level ? 0 : (levelHeight << level) - 1;
+        }
+        return BrightnessIntegralImage.getScaledGreyValue(image.getPixelRGB(paddingX, paddingY));
+    }
+
+    /**
+     * Returns how many pixels of each tile along a single axis are inside the content
+     * @param numTiles number of tiles along the axis
+     * @param tileSize size of each tile
+     * @param contentStart first pixel of the content along the axis
+     * @param contentLength number of content pixels along the axis
+     * @return the number of content pixels of each tile
+     */
+    private static long[] getContentPerTile(int numTiles, int tileSize, int contentStart,
+                                            int contentLength){
+        long[] contentPerTile = new long[numTiles];
+        for (int tile = 0; tile < numTiles; tile++) {
+            int start = Math.max(tile * tileSize, contentStart);
+            int end = Math.min((tile + 1) * tileSize, contentStart + contentLength);
+            contentPerTile[tile] = Math.max(0, end - start);
+        }
+        return contentPerTile;
+    }
+
+    /**
+     * Builds a level by summing every 2x2 tiles of the level below it, which must be built
+     * @param level level to build
+     */
+    private void buildFromFinerLevel(int level){
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.BRIGHTNESS_TABLE);
+        int finerWidth = image.getWidth() >> (level - 1);
+        int levelWidth = image.getWidth() >> level;
+        int levelHeight = image.getHeight() >> level;
+        createLevel(level);
+        long[] rowSums = new long[levelWidth];
+        for (int row = 0; row < levelHeight; row++) {
+            int topRow = 2 * row * finerWidth;
+            int bottomRow = topRow + finerWidth;
+            for (int col = 0; col < levelWidth; col++) {
+                rowSums[col] = getTileSum(level - 1, topRow + 2 * col) +
+                        getTileSum(level - 1, topRow + 2 * col + 1) +
+                        getTileSum(level - 1, bottomRow + 2 * col) +
+                        getTileSum(level - 1, bottomRow + 2 * col + 1);
+            }
+            setRowSums(level, row, rowSums);
+        }
+        timer.stop((long) finerWidth * (image.getHeight() >> (level - 1)));
+    }
+}
@@ -1,21 +1,42 @@
 package image;
 
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A package-private class of the package image.
+ * Only the pixels of the file are stored, the padding around them is virtual: reading a pixel
+ * outside of the original bounds returns the default color.
  * @author Dan Nirel
  */
 class FileImage implements Image {
     private static final Color DEFAULT_COLOR = Color.WHITE;
+    private static final int DEFAULT_RGB = DEFAULT_COLOR.getRGB();
     private static final int BASE = 2;
 
-    private final Color[][] pixelArray;
+    private final int width;
+    private final int height;
+    private final int origWidth;
+    private final int origHeight;
+    private final int rowPadAmount;
+    private final int colPadAmount;
+    private final int[] pixelArray;
+    // The sum caches live as long as the image, so later renders of other char sets and
+    // resolutions never read the pixels again. The summed-area table takes 8 bytes per padded
+    // pixel, at least twice the pixel array, but is only built for tile sizes which are not a
+    // power of 2.
+    // The pyramid takes 4 bytes per 4^k padded pixels for every built level k up to 16x16 tiles
+    // and 8 bytes per 4^k above them, so a level of 4x4 tiles costs about 1/16 of the pixels.
+    private BrightnessIntegralImage brightnessIntegral;
+    private BrightnessPyramid brightnessPyramid;
 
     /**
      * Constructs a new FileImage instance
@@ -23,19 +44,28 @@ class FileImage implements Image {
      * @throws IOException in case the image reading was not successful
      */
     public FileImage(String filename) throws IOException {
-        java.awt.image.BufferedImage im = ImageIO.read(new File(filename));
-        int origWidth = im.getWidth(), origHeight = im.getHeight();
-        //im.getRGB(x, y)); getter for access to a specific RGB rates
+        this(decode(filename));
+    }
+
+    /**
+     * Constructs a new FileImage instance from an image which was already decoded, its pixels
+     * are copied so the given image may be reused afterwards
+     * @param im decoded image
+     */
+    FileImage(BufferedImage im) {
+        origWidth = im.getWidth();
+        origHeight = im.getHeight();
 
-        int newWidth = nextPowerOfTwo(origWidth);
-        int newHeight = nextPowerOfTwo(origHeight);
+        StageTimer copyTimer = RenderStats.getInstance().start(RenderStage.COPY_PIXELS);
 
-        pixelArray = new Color[newHeight][newWidth];
-        int rowPadAmount = (newHeight - origHeight) / 2;
-        int colPadAmount = (newWidth - origWidth) / 2;
-        padImageRows(rowPadAmount);
-        padImageCols(colPadAmount);
-        fillImage(rowPadAmount, colPadAmount, im);
+        width = nextPowerOfTwo(origWidth);
+        height = nextPowerOfTwo(origHeight);
+
+        pixelArray = new int[origHeight * origWidth];
+        rowPadAmount = (height - origHeight) / 2;
+        colPadAmount = (width - origWidth) / 2;
+        fillImage(im);
+        copyTimer.stop(pixelArray.length);
 
     }
 
@@ -45,7 +75,7 @@ class FileImage implements Image {
      */
     @Override
     public int getWidth() {
-        return pixelArray[0].length;
+        return width;
     }
 
     /**
@@ -54,7 +84,7 @@ class FileImage implements Image {
      */
     @Override
     public int getHeight() {
-        return pixelArray.length;
+        return height;
     }
 
     /**
@@ -65,94 +95,114 @@ class FileImage implements Image {
      */
     @Override
     public Color getPixel(int x, int y) {
-        return pixelArray[y][x];
+        return new Color(getPixelRGB(x, y));
     }
 
     /**
-     * Splits the image into sub images and returns an object containing the sub images collection
-     * @param subImageSize height and width of each sub image
-     * @return SubImage instance with the sub images collection
+     * Packed pixel getter, avoids allocating a Color instance per pixel
+     * @param x col
+     * @param y row
+     * @return the packed ARGB value of the pixel at the y'th row and x'th col
      */
     @Override
-    public SubImages getSubImages(int subImageSize) {
-        ArrayList<ArrayList<Color[][]>> subImages = new ArrayList<>();
-        int rowSplit = pixelArray.length / subImageSize;
-        int colSplit = pixelArray[0].length / subImageSize;
-        for (int i = 0; i < rowSplit; i++) {
-            ArrayList<Color[][]> rowSubImages = new ArrayList<>();
-            for (int j = 0; j < colSplit; j++) {
-                rowSubImages.add(getSingleSubImageByCoordinates(subImageSize, i, j));
-            }
-            subImages.add(rowSubImages);
+    public int getPixelRGB(int x, int y) {
+        int origX = x - colPadAmount;
+        int origY = y - rowPadAmount;
+        if (origX < 0 || origY < 0 || origX >= origWidth || origY >= origHeight) {
+            return DEFAULT_RGB;
         }
-        return new SubImages(subImages);
+        return pixelArray[origY * origWidth + origX];
     }
 
     /**
-     * Given a number, returns the next power of 2 which is larger of equal to the number
-     * @param number to use
-     * @return the next power of 2 larger or equal to the number
+     * Copies the packed pixels of a run of a row, the pixels inside the original bounds are
+     * copied in bulk
+     * @param x col of the first pixel
+     * @param y row
+     * @param width number of pixels to copy
+     * @param rgbRow array to copy the ARGB values into, starting at index 0
      */
-    private int nextPowerOfTwo(int number){
-        return (int)Math.pow(BASE, Math.ceil(Math.log(number) / Math.log(BASE)));
+    @Override
+    public void getRowRGB(int x, int y, int width, int[] rgbRow) {
+        int origY = y - rowPadAmount;
+        int firstOrigX = Math.max(x - colPadAmount, 0);
+        int lastOrigX = Math.min(x + width - colPadAmount, origWidth);
+        if (origY < 0 || origY >= origHeight || firstOrigX >= lastOrigX) {
+            Arrays.fill(rgbRow, 0, width, DEFAULT_RGB);
+            return;
+        }
+        int copyStart = firstOrigX + colPadAmount - x;
+        int copyLength = lastOrigX - firstOrigX;
+        Arrays.fill(rgbRow, 0, copyStart, DEFAULT_RGB);
+        System.arraycopy(pixelArray, origY * origWidth + firstOrigX, rgbRow, copyStart, copyLength);
+        Arrays.fill(rgbRow, copyStart + copyLength, width, DEFAULT_RGB);
     }
 
     /**
-     * Pads the image's rows according to the given parameters
-     * @param numRowsToPad num of rows to pad from each direction
+     * Content bounds getter
+     * @return the bounds of the pixels of the file inside the padded image
      */
-    private void padImageRows(int numRowsToPad){
-        for (int row = 0; row < numRowsToPad; row++) {
-            for (int col = 0; col < pixelArray[0].length; col++) {
-                pixelArray[row][col] = DEFAULT_COLOR;
-                pixelArray[pixelArray.length - 1 - row][col] = DEFAULT_COLOR;
-            }
-        }
+    @Override
+    public Rectangle getContentBounds() {
+        return new Rectangle(colPadAmount, rowPadAmount, origWidth, origHeight);
     }
 
     /**
-     * Pads the image's columns according to the given parameters
-     * @param numColsToPad num of columns to pad from each direction
+     * Brightness summed-area table getter, the table is built on the first call
+     * @return a summed-area table of the grey values of this image
      */
-    private void padImageCols(int numColsToPad){
-        for (int col = 0; col < numColsToPad; col++) {
-            for (int row = 0; row < pixelArray.length; row++) {
-                pixelArray[row][col] = DEFAULT_COLOR;
-                pixelArray[row][pixelArray[0].length - 1 - col] = DEFAULT_COLOR;
-            }
+    @Override
+    public synchronized BrightnessIntegralImage getBrightnessIntegral() {
+        if (brightnessIntegral == null) {
+            brightnessIntegral = new BrightnessIntegralImage(this);
         }
+        return brightnessIntegral;
     }
 
     /**
-     * Fills the image according to the give
-     * @param rowPadAmount row pad amount from each direction
-     * @param colPadAmount column pad amount from each direction
-     * @param im that it's values need to be copied
+     * Brightness pyramid getter, the pyramid is created on the first call and its levels are
+     * built as they are requested
+     * @return a pyramid of the grey value sums of this image's tiles
      */
-    private void fillImage(int rowPadAmount, int colPadAmount, BufferedImage im){
-        for (int row = 0; row < im.getHeight(); row++) {
-            for (int col = 0; col < im.getWidth(); col++) {
-                pixelArray[row + rowPadAmount][col + colPadAmount] = new Color(im.getRGB(col, row));
-            }
+    @Override
+    public synchronized BrightnessPyramid getBrightnessPyramid() {
+        if (brightnessPyramid == null) {
+            brightnessPyramid = new BrightnessPyramid(this);
         }
+        return brightnessPyramid;
     }
 
     /**
-     * Returns a new sub image according to the size passed and the coordinates from the
-     * full image to copy from
-     * @param subImageSize sub image size
-     * @param i row to start copying from
-     * @param j column to start copying from
-     * @return a new sub image
+     * Given a number, returns the next power of 2 which is larger of equal to the number
+     * @param number to use
+     * @return the next power of 2 larger or equal to the number
      */
-    private Color[][] getSingleSubImageByCoordinates(int subImageSize, int i, int j){
-        Color[][] subImage = new Color[subImageSize][subImageSize];
-        for (int row = 0; row < subImageSize; row++) {
-            for (int col = 0; col < subImageSize; col++) {
-                subImage[row][col] = pixelArray[row + i * subImageSize][col + j * subImageSize];
-            }
+    static int nextPowerOfTwo(int number){
+        return (int)Math.pow(BASE, Math.ceil(Math.log(number) / Math.log(BASE)));
+    }
+
+    /**
+     * Reads and decodes an image file
+     * @param filename file name of the image to read
+     * @return the decoded image
+     * @throws IOException in case the image reading was not successful
+     */
+    private static BufferedImage decode(String filename) throws IOException {
+        StageTimer decodeTimer = RenderStats.getInstance().start(RenderStage.DECODE);
+        BufferedImage im = ImageIO.read(new File(filename));
+        if (im == null) {
+            throw new IOException(String.format("\"%s\" is not a supported image", filename));
         }
-        return subImage;
+        decodeTimer.stop((long) im.getWidth() * im.getHeight());
+        return im;
+    }
+
+    /**
+     * Fills the image according to the given image using a single bulk read of its pixels
+     * @param im that it's values need to be copied
+     */
+    private void fillImage(BufferedImage im){
+        im.getRGB(0, 0, origWidth, origHeight, pixelArray, 0, origWidth);
     }
 
 }
@@ -2,8 +2,6 @@ package image;
 
 import java.awt.*;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * Facade for the image module and an interface representing an image.
@@ -14,16 +12,63 @@ public interface Image{
     int getWidth();
     int getHeight();
 
+    /**
+     * Packed pixel getter
+     * @param x col
+     * @param y row
+     * @return the ARGB value of the pixel packed into a single int, as in Color.getRGB
+     */
+    default int getPixelRGB(int x, int y) {
+        return getPixel(x, y).getRGB();
+    }
+
+    /**
+     * Copies the packed pixels of a run of a row into the given array
+     * @param x col of the first pixel
+     * @param y row
+     * @param width number of pixels to copy
+     * @param rgbRow array to copy the ARGB values into, starting at index 0
+     */
+    default void getRowRGB(int x, int y, int width, int[] rgbRow) {
+        for (int i = 0; i < width; i++) {
+            rgbRow[i] = getPixelRGB(x + i, y);
+        }
+    }
+
+    /**
+     * Returns the bounds of the image's own pixels. Every pixel outside of them is padding,
+     * and all the padding pixels have the same color.
+     * @return the content bounds, the whole image by default
+     */
+    default Rectangle getContentBounds() {
+        return new Rectangle(getWidth(), getHeight());
+    }
+
     /**
      * default method for sub images getter
      * @param subImageSize size of each sub image
-     * @return SubImages instance with an empty sub images collection
+     * @return SubImages instance holding views over this image's sub images
      */
     default SubImages getSubImages(int subImageSize) {
-        ArrayList<Color[][]> innerList = new ArrayList<>();
-        ArrayList<ArrayList<Color[][]>> outerList = new ArrayList<>();
-        outerList.add(innerList);
-        return new SubImages(outerList);
+        return new SubImages(this, subImageSize);
+    }
+
+    /**
+     * default method for the brightness summed-area table getter. Implementations which are
+     * rendered more than once should build the table once and keep it.
+     * @return a summed-area table of the grey values of this image
+     */
+    default BrightnessIntegralImage getBrightnessIntegral() {
+        return new BrightnessIntegralImage(this);
+    }
+
+    /**
+     * default method for the brightness pyramid getter. Implementations which are rendered more
+     * than once should keep the pyramid, so its levels are only built once.
+     * @return a pyramid of the grey value sums of this image's tiles
+     */
+    default BrightnessPyramid getBrightnessPyramid() {
+        return new BrightnessPyramid(this);
     }
 
     /**
@@ -0,0 +1,299 @@
+package image;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The frames of an animation, read one at a time in order. The frames are either the images of
+ * an animated GIF file, or the image files of a directory ordered by the number in their names.
+ * The frames of a GIF file are drawn over each other on a canvas of the animation's size as the
+ * file describes, so each frame is returned whole. Every frame is padded like the image returned
+ * by Image.fromFile.
+ */
+public class ImageFrames implements Closeable {
+    private static final Color DEFAULT_COLOR = Color.WHITE;
+    private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String SCREEN_DESCRIPTOR = "LogicalScreenDescriptor";
+    private static final String SCREEN_WIDTH = "logicalScreenWidth";
+    private static final String SCREEN_HEIGHT = "logicalScreenHeight";
+    private static final String IMAGE_DESCRIPTOR = "ImageDescriptor";
+    private static final String IMAGE_LEFT = "imageLeftPosition";
+    private static final String IMAGE_TOP = "imageTopPosition";
+    private static final String GRAPHIC_CONTROL = "GraphicControlExtension";
+    private static final String DISPOSAL_METHOD = "disposalMethod";
+    private static final String RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+    private static final String RESTORE_TO_PREVIOUS = "restoreToPrevious";
+    private static final char EXTENSION_SEPARATOR = '.';
+
+    private final File[] frameFiles;
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private int nextFrame;
+    // state of the canvas the frames of a file are drawn on
+    private BufferedImage canvas;
+    private int[] canvasPixels;
+    private int[] previousPixels;
+    private String previousDisposal;
+    private Rectangle previousBounds;
+
+    /**
+     * Constructs a new ImageFrames instance over the frame files of a directory
+     * @param frameFiles image files of the frames, in order
+     */
+    private ImageFrames(File[] frameFiles) {
+        this.frameFiles = frameFiles;
+        this.input = null;
+        this.reader = null;
+    }
+
+    /**
+     * Constructs a new ImageFrames instance over the images of a file
+     * @param input stream of the file
+     * @param reader reader whose input is set to the stream
+     */
+    private ImageFrames(ImageInputStream input, ImageReader reader) {
+        this.frameFiles = null;
+        this.input = input;
+        this.reader = reader;
+    }
+
+    /**
+     * Opens the frames of an animation, only the header of an animation file is read
+     * @param path a path to an image file or to a directory of frame files on disk
+     * @return the opened frames, which must be closed after use
+     * @throws IOException in case the file could not be opened or is not a supported image
+     */
+    public static ImageFrames open(String path) throws IOException {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            return new ImageFrames(listFrameFiles(file));
+        }
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException(String.format("Failed to open \"%s\"", path));
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException(String.format("\"%s\" is not a supported image", path));
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, false);
+        return new ImageFrames(input, reader);
+    }
+
+    /**
+     * Reads the next frame
+     * @return the next frame, or null after the last one
+     * @throws IOException in case reading the frame failed
+     */
+    public Image readNext() throws IOException {
+        if (frameFiles != null) {
+            return nextFrame < frameFiles.length ? new FileImage(frameFiles[nextFrame++].getPath()) :
+                    null;
+        }
+        StageTimer timer = RenderStats.getInstance().start(RenderStage.DECODE);
+        BufferedImage frame;
+        try {
+            frame = reader.read(nextFrame);
+        } catch (IndexOutOfBoundsException e) {
+            // the number of frames is only known once the whole file was read
+            return null;
+        }
+        IIOMetadata metadata = reader.getImageMetadata(nextFrame++);
+        drawFrame(frame, metadata);
+        timer.stop((long) frame.getWidth() * frame.getHeight());
+        return new FileImage(canvas);
+    }
+
+    /**
+     * Draws a frame of the file on the canvas, after disposing of the previous frame as it
+     * requested
+     * @param frame decoded image of the frame
+     * @param metadata metadata of the frame
+     * @throws IOException in case the metadata of the file could not be read
+     */
+    private void drawFrame(BufferedImage frame, IIOMetadata metadata) throws IOException {
+        if (canvas == null) {
+            createCanvas(frame);
+        }
+        Graphics2D graphics = canvas.createGraphics();
+        try {
+            if (RESTORE_TO_BACKGROUND.equals(previousDisposal)) {
+                graphics.setColor(DEFAULT_COLOR);
+                graphics.fill(previousBounds);
+            }
+            else if (RESTORE_TO_PREVIOUS.equals(previousDisposal)) {
+                System.arraycopy(previousPixels, 0, canvasPixels, 0, canvasPixels.length);
+            }
+            Node frameNode = getMetadataNode(metadata, GIF_IMAGE_FORMAT, IMAGE_DESCRIPTOR);
+            int left = getIntAttribute(frameNode, IMAGE_LEFT);
+            int top = getIntAttribute(frameNode, IMAGE_TOP);
+            Node controlNode = getMetadataNode(metadata, GIF_IMAGE_FORMAT, GRAPHIC_CONTROL);
+            previousDisposal = controlNode == null ? null :
+                    controlNode.getAttributes().getNamedItem(DISPOSAL_METHOD).getNodeValue();
+            previousBounds = new Rectangle(left, top, frame.getWidth(), frame.getHeight());
+            if (RESTORE_TO_PREVIOUS.equals(previousDisposal)) {
+                if (previousPixels == null) {
+                    previousPixels = new int[canvasPixels.length];
+                }
+                System.arraycopy(canvasPixels, 0, previousPixels, 0, canvasPixels.length);
+            }
+            graphics.drawImage(frame, left, top, null);
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Creates the canvas the frames are drawn on, of the size of the animation's screen if the
+     * file has one and of the size of the first frame otherwise
+     * @param firstFrame decoded image of the first frame
+     * @throws IOException in case the metadata of the file could not be read
+     */
+    private void createCanvas(BufferedImage firstFrame) throws IOException {
+        Node screenNode = getMetadataNode(reader.getStreamMetadata(), GIF_STREAM_FORMAT,
+                SCREEN_DESCRIPTOR);
+        int width = screenNode == null ? firstFrame.getWidth() :
+                Math.max(1, getIntAttribute(screenNode, SCREEN_WIDTH));
+        int height = screenNode == null ? firstFrame.getHeight() :
+                Math.max(1, getIntAttribute(screenNode, SCREEN_HEIGHT));
+        canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        canvasPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        Arrays.fill(canvasPixels, DEFAULT_COLOR.getRGB());
+    }
+
+    /**
+     * Returns a child node of the root of the metadata in the given format
+     * @param metadata metadata to search, may be null
+     * @param formatName name of the metadata format
+     * @param nodeName name of the child node
+     * @return the child node, or null if the metadata has no such format or node
+     */
+    private static Node getMetadataNode(IIOMetadata metadata, String formatName, String nodeName) {
+        if (metadata == null ||
+                !Arrays.asList(metadata.getMetadataFormatNames()).contains(formatName)) {
+            return null;
+        }
+        for (Node child = metadata.getAsTree(formatName).getFirstChild(); child != null;
+             child = child.getNextSibling()) {
+            if (child.getNodeName().equals(nodeName)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of an integer attribute of a metadata node
+     * @param node metadata node, may be null
+     * @param attributeName name of the attribute
+     * @return the value of the attribute, or 0 if the node or the attribute does not exist
+     * @throws IOException in case the value is not an integer
+     */
+    private static int getIntAttribute(Node node, String attributeName) throws IOException {
+        NamedNodeMap attributes = node == null ? null : node.getAttributes();
+        Node attribute = attributes == null ? null : attributes.getNamedItem(attributeName);
+        if (attribute == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(attribute.getNodeValue());
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid %s \"%s\"", attributeName,
+                    attribute.getNodeValue()));
+        }
+    }
+
+    /**
+     * Lists the image files of a directory ordered by the last number in their names, so
+     * "frame2.png" comes before "frame10.png". Files without a number come first, by name, and
+     * files whose extension is not of a supported image format are skipped.
+     * @param dir directory of the frame files
+     * @return the frame files in order
+     * @throws IOException in case the directory could not be listed
+     */
+    private static File[] listFrameFiles(File dir) throws IOException {
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        File[] frameFiles = dir.listFiles(file -> file.isFile() &&
+                suffixes.contains(getExtension(file.getName()).toLowerCase(Locale.ROOT)));
+        if (frameFiles == null) {
+            throw new IOException(String.format("Failed to list \"%s\"", dir));
+        }
+        Arrays.sort(frameFiles, Comparator.comparing((File file) -> getFrameNumber(file.getName()),
+                ImageFrames::compareFrameNumbers).thenComparing(File::getName));
+        return frameFiles;
+    }
+
+    /**
+     * Returns the extension of a file name
+     * @param name file name
+     * @return the text after the last '.', or an empty string if there is none
+     */
+    private static String getExtension(String name) {
+        int extensionStart = name.lastIndexOf(EXTENSION_SEPARATOR);
+        return extensionStart < 0 ? "" : name.substring(extensionStart + 1);
+    }
+
+    /**
+     * Returns the last run of digits in a file name, without leading zeros
+     * @param name file name
+     * @return the digits, "0" for a number which is all zeros, or an empty string if the name
+     * has no digits
+     */
+    private static String getFrameNumber(String name) {
+        int end = name.length();
+        while (end > 0 && !Character.isDigit(name.charAt(end - 1))) {
+            end--;
+        }
+        int start = end;
+        while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+            start--;
+        }
+        while (start < end - 1 && name.charAt(start) == '0') {
+            start++;
+        }
+        return name.substring(start, end);
+    }
+
+    /**
+     * Compares frame numbers of any length without parsing them
+     * @param first digits of the first number, without leading zeros
+     * @param second digits of the second number, without leading zeros
+     * @return a negative value, zero or a positive value as the first number is smaller than,
+     * equal to or larger than the second
+     */
+    private static int compareFrameNumbers(String first, String second) {
+        if (first.length() != second.length()) {
+            return Integer.compare(first.length(), second.length());
+        }
+        return first.compareTo(second);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.dispose();
+            input.close();
+        }
+    }
+}
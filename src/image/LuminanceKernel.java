@@ -0,0 +1,76 @@
+package image;
+
+/**
+ * Converts rows of packed pixels to scaled grey values in bulk. The implementation is chosen once
+ * at startup by the system property ascii_art.luminance: "scalar" converts pixel by pixel, and
+ * "packed", the default, sums the color channels of many pixels at once. Both produce exactly
+ * the same sums, since the grey values are scaled integers.
+ */
+interface LuminanceKernel {
+    String KERNEL_PROPERTY = "ascii_art.luminance";
+    String SCALAR_KERNEL = "scalar";
+
+    /**
+     * Returns the kernel selected by the system property
+     * @return the luminance kernel
+     */
+    static LuminanceKernel getInstance() {
+        return SelectedKernel.INSTANCE;
+    }
+
+    /**
+     * Sums the scaled grey values of a run of pixels
+     * @param rgbRow packed ARGB values of the pixels
+     * @param from index of the first pixel
+     * @param length number of pixels
+     * @return the sum of the pixels' grey values multiplied by GREY_FACTORS_SCALE
+     */
+    long sumScaledGrey(int[] rgbRow, int from, int length);
+
+    /**
+     * Converts a run of pixels to their scaled grey values
+     * @param rgbRow packed ARGB values of the pixels
+     * @param from index of the first pixel
+     * @param length number of pixels
+     * @param greyRow array to write the grey values into, starting at index 0
+     */
+    void toScaledGrey(int[] rgbRow, int from, int length, int[] greyRow);
+
+    /**
+     * Adds the scaled grey values of a run of pixels to the sums of the tiles they fall in
+     * @param rgbRow packed ARGB values of the pixels
+     * @param from index of the first pixel
+     * @param length number of pixels
+     * @param firstX column of the first pixel in the image
+     * @param tileSize width of each tile
+     * @param tileSums sums of the row of tiles, pixels right of the last tile are ignored
+     * @param tileOffset index of the row's first tile in tileSums
+     * @param numTiles number of tiles in the row
+     */
+    default void addTileSums(int[] rgbRow, int from, int length, int firstX, int tileSize,
+                             long[] tileSums, int tileOffset, int numTiles) {
+        int x = firstX;
+        int endX = firstX + length;
+        while (x < endX) {
+            int tile = x / tileSize;
+            if (tile >= numTiles) {
+                return;
+            }
+            int tileEndX = Math.min((tile + 1) * tileSize, endX);
+            tileSums[tileOffset + tile] += sumScaledGrey(rgbRow, from + x - firstX, tileEndX - x);
+            x = tileEndX;
+        }
+    }
+
+    /**
+     * Holder of the selected kernel, read when it is first used
+     */
+    final class SelectedKernel {
+        private static final LuminanceKernel INSTANCE =
+                SCALAR_KERNEL.equals(System.getProperty(KERNEL_PROPERTY)) ?
+                        new ScalarLuminanceKernel() : new PackedLuminanceKernel();
+
+        private SelectedKernel() {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package image;
+
+/**
+ * Luminance kernel which sums the color channels of a run of pixels before weighting them, since
+ * the grey value is linear in the channels. The red and blue channels are masked out of each
+ * pixel together and summed as two 16 bit lanes of a single int, so every pixel only costs two
+ * masks and two additions, in a loop simple enough for the JIT to vectorize. Runs are summed in
+ * chunks of at most LANE_CHUNK pixels, which is as many as a 16 bit lane holds without carrying
+ * into the next one. Runs shorter than MIN_PACKED_RUN pixels are converted pixel by pixel.
+ */
+class PackedLuminanceKernel implements LuminanceKernel {
+    private static final int RED_BLUE_MASK = 0x00FF00FF;
+    private static final int GREEN_MASK = 0x0000FF00;
+    private static final int LANE_BITS = 16;
+    private static final int LANE_MASK = 0xFFFF;
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int LANE_CHUNK = 256;
+    private static final int MIN_PACKED_RUN = 16;
+    private static final int MAX_RGB = 255;
+
+    @Override
+    public long sumScaledGrey(int[] rgbRow, int from, int length) {
+        long sum = 0;
+        int end = from + length;
+        if (length < MIN_PACKED_RUN) {
+            // weighting the lanes costs as much as converting a few pixels on their own
+            for (int i = from; i < end; i++) {
+                sum += BrightnessIntegralImage.getScaledGreyValue(rgbRow[i]);
+            }
+            return sum;
+        }
+        for (int chunkStart = from; chunkStart < end; chunkStart += LANE_CHUNK) {
+            int chunkEnd = Math.min(chunkStart + LANE_CHUNK, end);
+            int redBlueSums = 0;
+            int greenSums = 0;
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                redBlueSums += rgbRow[i] & RED_BLUE_MASK;
+                greenSums += rgbRow[i] & GREEN_MASK;
+            }
+            // the red lane may reach the sign bit, so it is read as unsigned
+            sum += (Integer.toUnsignedLong(redBlueSums) >>> LANE_BITS) *
+                    BrightnessIntegralImage.RED_FOR_GREY_FACTOR +
+                    (greenSums >>> GREEN_SHIFT) * BrightnessIntegralImage.GREEN_FOR_GREY_FACTOR +
+                    (redBlueSums & LANE_MASK) * BrightnessIntegralImage.BLUE_FOR_GREY_FACTOR;
+        }
+        return sum;
+    }
+
+    @Override
+    public void toScaledGrey(int[] rgbRow, int from, int length, int[] greyRow) {
+        // the largest scaled grey value fits an int, so the whole loop stays in int arithmetic
+        int redFactor = (int) BrightnessIntegralImage.RED_FOR_GREY_FACTOR;
+        int greenFactor = (int) BrightnessIntegralImage.GREEN_FOR_GREY_FACTOR;
+        int blueFactor = (int) BrightnessIntegralImage.BLUE_FOR_GREY_FACTOR;
+        for (int i = 0; i < length; i++) {
+            int rgb = rgbRow[from + i];
+            greyRow[i] = ((rgb >> RED_SHIFT) & MAX_RGB) * redFactor +
+                    ((rgb >> GREEN_SHIFT) & MAX_RGB) * greenFactor + (rgb & MAX_RGB) * blueFactor;
+        }
+    }
+}
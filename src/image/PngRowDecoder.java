@@ -0,0 +1,415 @@
+package image;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the rows of a PNG file in order in a single pass, so an image can be read band after
+ * band without inflating its data again for every band, as reading source regions through
+ * ImageIO does. Only the unfiltered samples are decoded here, they are stored in bands of the
+ * image type the ImageIO reader decodes the file to, so the pixels read from the bands are the
+ * same as the ones of the image ImageIO returns.
+ * Interlaced files, and gray or RGB files with a transparent color which ImageIO turns into an
+ * alpha channel, are not supported. The CRC of every IDAT chunk is checked, and so is the
+ * checksum of the compressed data once the rest of it is read by finish.
+ * @author Eliyahu Tamarkin
+ */
+final class PngRowDecoder implements Closeable {
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int TRNS = 0x74524E53;
+    private static final int CRC_LENGTH = 4;
+    private static final int IHDR_LENGTH = 13;
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+    private static final int NOT_INTERLACED = 0;
+    private static final int BITS_IN_BYTE = 8;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int INFLATE_BUFFER_SIZE = 1 << 16;
+    // row filter types
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final ImageDataStream imageData;
+    private final InputStream rows;
+    private final ImageTypeSpecifier imageType;
+    private final int width;
+    private final int bitDepth;
+    private final int numChannels;
+    private final int bytesPerPixel;
+    private byte[] row;
+    private byte[] previousRow;
+    private final int[] samples;
+
+    /**
+     * Constructs a new PngRowDecoder instance over a file whose header was read
+     * @param file stream of the file, positioned at the data of its first IDAT chunk
+     * @param firstDataLength length of the data of the first IDAT chunk
+     * @param imageType image type the ImageIO reader decodes the file to
+     * @param width width of the image
+     * @param bitDepth bits of every sample
+     * @param numChannels samples of every pixel
+     */
+    private PngRowDecoder(DataInputStream file, int firstDataLength, ImageTypeSpecifier imageType,
+                          int width, int bitDepth, int numChannels) {
+        this.imageData = new ImageDataStream(file, firstDataLength);
+        this.rows = new InflaterInputStream(imageData, new Inflater(), INFLATE_BUFFER_SIZE);
+        this.imageType = imageType;
+        this.width = width;
+        this.bitDepth = bitDepth;
+        this.numChannels = numChannels;
+        this.bytesPerPixel = Math.max(1, bitDepth * numChannels / BITS_IN_BYTE);
+        int rowBytes = (int) (((long) width * numChannels * bitDepth + BITS_IN_BYTE - 1) /
+                BITS_IN_BYTE);
+        this.row = new byte[rowBytes];
+        this.previousRow = new byte[rowBytes];
+        this.samples = new int[width * numChannels];
+    }
+
+    /**
+     * Opens a PNG file for decoding its rows, the header is read up to the image data
+     * @param file the PNG file
+     * @param reader ImageIO reader whose input is the same file
+     * @return the opened decoder, which must be closed after use, or null if the file is not a
+     * PNG file whose rows can be decoded in order
+     * @throws IOException in case the file could not be read
+     */
+    static PngRowDecoder open(File file, ImageReader reader) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), INFLATE_BUFFER_SIZE));
+        try {
+            PngRowDecoder decoder = readHeader(in, reader);
+            if (decoder != null) {
+                return decoder;
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        in.close();
+        return null;
+    }
+
+    /**
+     * Reads the chunks of the file up to the first IDAT chunk
+     * @param in stream of the file, at its start
+     * @param reader ImageIO reader whose input is the same file
+     * @return the decoder, or null if the rows of the file cannot be decoded in order
+     * @throws IOException in case the file could not be read
+     */
+    private static PngRowDecoder readHeader(DataInputStream in, ImageReader reader)
+            throws IOException {
+        if (in.readLong() != PNG_SIGNATURE) {
+            return null;
+        }
+        int width = 0;
+        int bitDepth = 0;
+        int colorType = 0;
+        boolean headerRead = false;
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == IDAT) {
+                if (!headerRead) {
+                    return null;
+                }
+                int numChannels = getNumChannels(colorType);
+                return new PngRowDecoder(in, length, reader.getImageTypes(0).next(), width,
+                        bitDepth, numChannels);
+            }
+            if (type == IHDR) {
+                width = in.readInt();
+                in.readInt();
+                bitDepth = in.readUnsignedByte();
+                colorType = in.readUnsignedByte();
+                in.readUnsignedByte();
+                in.readUnsignedByte();
+                int interlace = in.readUnsignedByte();
+                if (interlace != NOT_INTERLACED || getNumChannels(colorType) == 0) {
+                    return null;
+                }
+                headerRead = true;
+                skipFully(in, length - IHDR_LENGTH + CRC_LENGTH);
+                continue;
+            }
+            if (type == TRNS && colorType != PALETTE) {
+                return null;
+            }
+            skipFully(in, (long) length + CRC_LENGTH);
+        }
+    }
+
+    /**
+     * Returns the number of samples of every pixel of a PNG color type
+     * @param colorType color type of the file
+     * @return the number of samples, or 0 for an unknown color type
+     */
+    private static int getNumChannels(int colorType) {
+        switch (colorType) {
+            case GREY:
+            case PALETTE:
+                return 1;
+            case GREY_ALPHA:
+                return 2;
+            case RGB:
+                return 3;
+            case RGB_ALPHA:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Skips bytes of a stream
+     * @param in stream to skip in
+     * @param numBytes number of bytes to skip
+     * @throws IOException in case the stream ended before
+     */
+    private static void skipFully(DataInputStream in, long numBytes) throws IOException {
+        for (long skipped = 0; skipped < numBytes; ) {
+            long n = in.skip(numBytes - skipped);
+            if (n <= 0) {
+                in.readByte();
+                n = 1;
+            }
+            skipped += n;
+        }
+    }
+
+    /**
+     * Creates a band the rows are decoded into, of the image type the ImageIO reader decodes
+     * the file to
+     * @param numRows number of rows of the band
+     * @return the band
+     */
+    BufferedImage createBand(int numRows) {
+        return imageType.createBufferedImage(width, numRows);
+    }
+
+    /**
+     * Decodes the next rows of the file into the top rows of a band
+     * @param band band created by createBand
+     * @param numRows number of rows to decode
+     * @throws IOException in case the file ended or its data is not valid
+     */
+    void readRows(BufferedImage band, int numRows) throws IOException {
+        WritableRaster raster = band.getRaster();
+        for (int y = 0; y < numRows; y++) {
+            int filter = rows.read();
+            if (filter < 0) {
+                throw new EOFException("PNG image data ended early");
+            }
+            readFully(row);
+            unfilter(filter);
+            unpackSamples();
+            raster.setPixels(0, y, width, 1, samples);
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+        }
+    }
+
+    /**
+     * Reads the bytes of a whole row
+     * @param buffer row buffer to fill
+     * @throws IOException in case the data ended before the row
+     */
+    private void readFully(byte[] buffer) throws IOException {
+        for (int offset = 0; offset < buffer.length; ) {
+            int n = rows.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                throw new EOFException("PNG image data ended early");
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Reverses the filter of the row, using the previous row which was already unfiltered
+     * @param filter filter type of the row
+     * @throws IOException in case the filter type is not valid
+     */
+    private void unfilter(int filter) throws IOException {
+        switch (filter) {
+            case FILTER_NONE:
+                return;
+            case FILTER_SUB:
+                for (int i = bytesPerPixel; i < row.length; i++) {
+                    row[i] += row[i - bytesPerPixel];
+                }
+                return;
+            case FILTER_UP:
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += previousRow[i];
+                }
+                return;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & BYTE_MASK;
+                    row[i] += (left + (previousRow[i] & BYTE_MASK)) >>> 1;
+                }
+                return;
+            case FILTER_PAETH:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & BYTE_MASK;
+                    int upLeft = i < bytesPerPixel ? 0 : previousRow[i - bytesPerPixel] & BYTE_MASK;
+                    row[i] += paeth(left, previousRow[i] & BYTE_MASK, upLeft);
+                }
+                return;
+            default:
+                throw new IOException("Invalid PNG row filter " + filter);
+        }
+    }
+
+    /**
+     * The Paeth predictor of the PNG specification
+     * @param left byte of the pixel on the left
+     * @param up byte of the pixel above
+     * @param upLeft byte of the pixel above on the left
+     * @return the one of the three closest to left + up - upLeft
+     */
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int leftDistance = Math.abs(estimate - left);
+        int upDistance = Math.abs(estimate - up);
+        int upLeftDistance = Math.abs(estimate - upLeft);
+        if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+            return left;
+        }
+        return upDistance <= upLeftDistance ? up : upLeft;
+    }
+
+    /**
+     * Unpacks the unfiltered row into one sample per int
+     */
+    private void unpackSamples() {
+        if (bitDepth == BITS_IN_BYTE) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = row[i] & BYTE_MASK;
+            }
+        }
+        else if (bitDepth > BITS_IN_BYTE) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (row[2 * i] & BYTE_MASK) << BITS_IN_BYTE | (row[2 * i + 1] & BYTE_MASK);
+            }
+        }
+        else {
+            int sampleMask = (1 << bitDepth) - 1;
+            int samplesInByte = BITS_IN_BYTE / bitDepth;
+            for (int i = 0; i < samples.length; i++) {
+                int shift = BITS_IN_BYTE - bitDepth * (i % samplesInByte + 1);
+                samples[i] = (row[i / samplesInByte] >> shift) & sampleMask;
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the image data after the last row, so the checksum of the compressed
+     * data and the CRCs of the remaining IDAT chunks are checked
+     * @throws IOException in case the rest of the data is not valid
+     */
+    void finish() throws IOException {
+        byte[] rest = new byte[INFLATE_BUFFER_SIZE];
+        while (rows.read(rest) >= 0) {
+            // decoded bytes past the last row are ignored, like ImageIO ignores them
+        }
+        while (imageData.read(rest, 0, rest.length) >= 0) {
+            // only the CRCs of the chunks are checked
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        rows.close();
+    }
+
+    /**
+     * The concatenated data of the consecutive IDAT chunks of a file
+     */
+    private static final class ImageDataStream extends InputStream {
+        private final DataInputStream file;
+        private final CRC32 crc = new CRC32();
+        private int remaining;
+        private boolean ended;
+
+        /**
+         * @param file stream of the file, positioned at the data of the first IDAT chunk
+         * @param firstDataLength length of the data of the first IDAT chunk
+         */
+        private ImageDataStream(DataInputStream file, int firstDataLength) {
+            this.file = file;
+            this.remaining = firstDataLength;
+            startChunk();
+        }
+
+        /**
+         * Starts the CRC of an IDAT chunk, which covers its type and its data
+         */
+        private void startChunk() {
+            crc.reset();
+            crc.update(IDAT >>> 24);
+            crc.update(IDAT >>> 16);
+            crc.update(IDAT >>> 8);
+            crc.update(IDAT);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & BYTE_MASK;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0 && !ended) {
+                // the CRC of the chunk, then the header of the next one
+                if (file.readInt() != (int) crc.getValue()) {
+                    throw new IOException("PNG image data is corrupt, its CRC does not match");
+                }
+                int nextLength = file.readInt();
+                if (file.readInt() != IDAT) {
+                    ended = true;
+                    break;
+                }
+                remaining = nextLength;
+                startChunk();
+            }
+            if (ended) {
+                return -1;
+            }
+            int n = file.read(buffer, offset, Math.min(length, remaining));
+            if (n < 0) {
+                throw new EOFException("PNG file ended inside an IDAT chunk");
+            }
+            crc.update(buffer, offset, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package image;
+
+/**
+ * Luminance kernel which converts every pixel on its own, with three multiplications each.
+ * Kept as the reference the packed kernel is checked against.
+ */
+class ScalarLuminanceKernel implements LuminanceKernel {
+
+    @Override
+    public long sumScaledGrey(int[] rgbRow, int from, int length) {
+        long sum = 0;
+        for (int i = from; i < from + length; i++) {
+            sum += BrightnessIntegralImage.getScaledGreyValue(rgbRow[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public void toScaledGrey(int[] rgbRow, int from, int length, int[] greyRow) {
+        for (int i = 0; i < length; i++) {
+            greyRow[i] = (int) BrightnessIntegralImage.getScaledGreyValue(rgbRow[from + i]);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package image;
+
+import render_stats.RenderStage;
+import render_stats.RenderStats;
+import render_stats.StageTimer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * An image file which is decoded one band of rows at a time instead of being loaded whole,
+ * for images which are too large to be held in memory. Its dimensions and padding are the same
+ * as the ones of the image returned by Image.fromFile for the same file, and the brightness of
+ * its tiles is identical, but only a single band of pixels is held in memory at any time.
+ * PNG files are decoded in a single pass over their data. Other formats are read band by band as
+ * source regions of the ImageIO reader, which for formats without random access decodes the image
+ * from its top again for every band, so it takes time quadratic in the height.
+ */
+public class StreamingImage implements Closeable {
+    private static final Color DEFAULT_COLOR = Color.WHITE;
+    private static final int BAND_PIXEL_ROWS = 256;
+    private static final String PNG_FORMAT = "png";
+    private static final long DEFAULT_SCALED_GREY =
+            BrightnessIntegralImage.getScaledGreyValue(DEFAULT_COLOR.getRGB());
+
+    /**
+     * Consumer of the brightness values of a row of tiles
+     */
+    public interface TileRowConsumer {
+        /**
+         * @param row row of the tiles in the grid of tiles
+         * @param brightness average grey value of each tile in the row, the array is reused
+         *                   for the next row and must not be kept
+         */
+        void accept(int row, float[] brightness);
+    }
+
+    private final String filename;
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int origWidth;
+    private final int origHeight;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructs a new StreamingImage instance over an opened reader
+     * @param filename name of the image file, for error messages
+     * @param input stream of the image file
+     * @param reader reader whose input is set to the stream
+     * @throws IOException in case the image dimensions could not be read
+     */
+    private StreamingImage(String filename, ImageInputStream input, ImageReader reader)
+            throws IOException {
+        this.filename = filename;
+        this.input = input;
+        this.reader = reader;
+        this.origWidth = reader.getWidth(0);
+        this.origHeight = reader.getHeight(0);
+        this.width = FileImage.nextPowerOfTwo(origWidth);
+        this.height = FileImage.nextPowerOfTwo(origHeight);
+    }
+
+    /**
+     * Opens an image file for streaming, only its header is read
+     * @param filename a path to an image file on disk
+     * @return the opened image, which must be closed after use
+     * @throws IOException in case the file could not be opened or is not a supported image
+     */
+    public static StreamingImage open(String filename) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new File(filename));
+        if (input == null) {
+            throw new IOException(String.format("Failed to open \"%s\"", filename));
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException(String.format("\"%s\" is not a supported image", filename));
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        try {
+            return new StreamingImage(filename, input, reader);
+        } catch (IOException e) {
+            reader.dispose();
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Image width getter
+     * @return the padded width of the image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Image height getter
+     * @return the padded height of the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Original pixels count getter
+     * @return the number of pixels in the image file, without padding
+     */
+    public long getNumOriginalPixels() {
+        return (long) origWidth * origHeight;
+    }
+
+    /**
+     * Decodes the image band after band and passes the brightness of each row of tiles, in order,
+     * to the given consumer
+     * @param tileSize height and width of each tile
+     * @param consumer consumer of the brightness of the rows of tiles
+     * @throws IOException in case decoding the image failed
+     */
+    public void readTileRows(int tileSize, TileRowConsumer consumer) throws IOException {
+        int numCols = width / tileSize;
+        int colPadAmount = (width - origWidth) / 2;
+        long[] tileSums = new long[numCols];
+        float[] brightness = new float[numCols];
+        int[] pixelRow = new int[origWidth];
+        // number of pixels of the file in each column of tiles, in every row of pixels
+        long[] colOriginalPixels = new long[numCols];
+        for (int col = 0; col < numCols; col++) {
+            colOriginalPixels[col] = Math.max(0, Math.min((col + 1) * tileSize - colPadAmount,
+                    origWidth) - Math.max(col * tileSize - colPadAmount, 0));
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        try (PngRowDecoder pngRows = isPng() ? PngRowDecoder.open(new File(filename), reader) :
+                null) {
+            readBands(tileSize, consumer, pngRows, param, tileSums, brightness, pixelRow,
+                    colOriginalPixels);
+        }
+    }
+
+    /**
+     * Decodes the bands in order and passes the brightness of their rows of tiles to the consumer
+     * @param tileSize height and width of each tile
+     * @param consumer consumer of the brightness of the rows of tiles
+     * @param pngRows decoder of the rows of a PNG file, or null to read the bands as regions
+     * @param param read parameters of the regions
+     * @param tileSums buffer of the sums of a row of tiles
+     * @param brightness buffer of the brightness of a row of tiles
+     * @param pixelRow buffer of a row of pixels
+     * @param colOriginalPixels number of pixels of the file in each column of tiles
+     * @throws IOException in case decoding the image failed
+     */
+    private void readBands(int tileSize, TileRowConsumer consumer, PngRowDecoder pngRows,
+                           ImageReadParam param, long[] tileSums, float[] brightness,
+                           int[] pixelRow, long[] colOriginalPixels) throws IOException {
+        int numCols = width / tileSize;
+        int numRows = height / tileSize;
+        int rowPadAmount = (height - origHeight) / 2;
+        int colPadAmount = (width - origWidth) / 2;
+        int tileRowsInBand = Math.max(1, BAND_PIXEL_ROWS / tileSize);
+        LuminanceKernel kernel = LuminanceKernel.getInstance();
+        BufferedImage pngBand = null;
+        for (int bandStartRow = 0; bandStartRow < numRows; bandStartRow += tileRowsInBand) {
+            int bandEndRow = Math.min(bandStartRow + tileRowsInBand, numRows);
+            // rows of the image file covered by the band, the rest of the band is padding
+            int firstY = Math.max(0, bandStartRow * tileSize - rowPadAmount);
+            int lastY = Math.min(origHeight, bandEndRow * tileSize - rowPadAmount);
+            BufferedImage band = null;
+            int bandFirstY = firstY;
+            if (lastY > firstY) {
+                StageTimer timer = RenderStats.getInstance().start(RenderStage.DECODE);
+                if (pngRows != null) {
+                    // the bands are consecutive, so their rows are the next rows of the file
+                    if (pngBand == null) {
+                        pngBand = pngRows.createBand(tileRowsInBand * tileSize);
+                    }
+                    pngRows.readRows(pngBand, lastY - firstY);
+                    band = pngBand;
+                }
+                else {
+                    param.setSourceRegion(new Rectangle(0, firstY, origWidth, lastY - firstY));
+                    band = reader.read(0, param);
+                }
+                timer.stop((long) origWidth * (lastY - firstY));
+            }
+            StageTimer timer = RenderStats.getInstance().start(RenderStage.BRIGHTNESS_TABLE);
+            for (int row = bandStartRow; row < bandEndRow; row++) {
+                Arrays.fill(tileSums, 0);
+                int rowFirstY = Math.max(firstY, row * tileSize - rowPadAmount);
+                int rowLastY = Math.min(lastY, (row + 1) * tileSize - rowPadAmount);
+                for (int y = rowFirstY; y < rowLastY; y++) {
+                    band.getRGB(0, y - bandFirstY, origWidth, 1, pixelRow, 0, origWidth);
+                    kernel.addTileSums(pixelRow, 0, origWidth, colPadAmount, tileSize, tileSums, 0,
+                            numCols);
+                }
+                long tilePixels = (long) tileSize * tileSize;
+                int numPixelRows = Math.max(0, rowLastY - rowFirstY);
+                for (int col = 0; col < numCols; col++) {
+                    long paddingSum = (tilePixels - colOriginalPixels[col] * numPixelRows) *
+                            DEFAULT_SCALED_GREY;
+                    brightness[col] = BrightnessIntegralImage.toBrightness(
+                            tileSums[col] + paddingSum, tilePixels);
+                }
+                timer.pause();
+                consumer.accept(row, brightness);
+                timer.resume();
+            }
+            timer.stop((long) (bandEndRow - bandStartRow) * numCols);
+        }
+        if (pngRows != null) {
+            pngRows.finish();
+        }
+    }
+
+    /**
+     * @return true if the image file is a PNG file
+     * @throws IOException in case the format of the file could not be read
+     */
+    private boolean isPng() throws IOException {
+        return reader.getFormatName().equalsIgnoreCase(PNG_FORMAT);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
@@ -0,0 +1,56 @@
+package image;
+
+import java.awt.*;
+
+/**
+ * A square window over a parent image. The window holds no pixels of its own and reads
+ * directly from the image it was created from.
+ */
+public class SubImage {
+    private final Image image;
+    private final int xOffset;
+    private final int yOffset;
+    private final int size;
+
+    /**
+     * Constructs a new SubImage instance
+     * @param image parent image to read the pixels from
+     * @param xOffset column in the parent image where the window starts
+     * @param yOffset row in the parent image where the window starts
+     * @param size height and width of the window
+     */
+    SubImage(Image image, int xOffset, int yOffset, int size){
+        this.image = image;
+        this.xOffset = xOffset;
+        this.yOffset = yOffset;
+        this.size = size;
+    }
+
+    /**
+     * Sub image size getter
+     * @return the height and width of the sub image
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Pixel getter
+     * @param x col relative to the sub image
+     * @param y row relative to the sub image
+     * @return the pixel at the y'th row and x'th col of the sub image
+     */
+    public Color getPixel(int x, int y) {
+        return image.getPixel(xOffset + x, yOffset + y);
+    }
+
+    /**
+     * Packed pixel getter
+     * @param x col relative to the sub image
+     * @param y row relative to the sub image
+     * @return the packed ARGB value of the pixel at the y'th row and x'th col of the sub image
+     */
+    public int getPixelRGB(int x, int y) {
+        return image.getPixelRGB(xOffset + x, yOffset + y);
+    }
+}
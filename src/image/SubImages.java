@@ -1,22 +1,179 @@
 package image;
 
-import java.awt.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
- * Sub images iterator to be used for iterating over all the sub images
+ * Sub images iterator to be used for iterating over all the sub images.
+ * The sub images are views over the parent image, so no pixels are copied.
  */
-public class SubImages implements Iterable<Color[][]>{
-    private final ArrayList<ArrayList<Color[][]>> subImagesCollection;
+public class SubImages implements Iterable<SubImage>{
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int MAX_CHANNEL = 0xFF;
+
+    private final Image image;
+    private final int subImageSize;
+    private final int numRows;
+    private final int numCols;
+    // written before brightnessPrepared is set, and only read after it was seen set. At most
+    // one of the tile sums is set, by whether the pyramid keeps the level's sums as ints.
+    private int[] intTileSums;
+    private long[] tileSums;
+    private BrightnessIntegralImage brightnessIntegral;
+    private volatile boolean brightnessPrepared;
 
     /**
      * Constructs a new SubImages instance
-     * @param subImages sub images collection to be iterated on
+     * @param image parent image to be split
+     * @param subImageSize height and width of each sub image
+     */
+    public SubImages(Image image, int subImageSize){
+        this.image = image;
+        this.subImageSize = subImageSize;
+        this.numRows = image.getHeight() / subImageSize;
+        this.numCols = image.getWidth() / subImageSize;
+    }
+
+    /**
+     * Sub image size getter
+     * @return the height and width of each sub image
+     */
+    public int getSubImageSize() {
+        return subImageSize;
+    }
+
+    /**
+     * Number of rows getter
+     * @return the number of sub images in each column of the grid
+     */
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Number of columns getter
+     * @return the number of sub images in each row of the grid
+     */
+    public int getNumCols() {
+        return numCols;
+    }
+
+    /**
+     * Returns a view of the sub image at the given grid coordinates
+     * @param row row of the sub image in the grid
+     * @param col column of the sub image in the grid
+     * @return the sub image view
+     */
+    public SubImage getSubImage(int row, int col) {
+        return new SubImage(image, col * subImageSize, row * subImageSize, subImageSize);
+    }
+
+    /**
+     * Packed pixel getter which reads a pixel of a sub image without creating a view for it
+     * @param row row of the sub image in the grid
+     * @param col column of the sub image in the grid
+     * @param x col relative to the sub image
+     * @param y row relative to the sub image
+     * @return the packed ARGB value of the requested pixel
      */
-    public SubImages(ArrayList<ArrayList<Color[][]>> subImages){
-        this.subImagesCollection = subImages;
+    public int getPixelRGB(int row, int col, int x, int y) {
+        return image.getPixelRGB(col * subImageSize + x, row * subImageSize + y);
+    }
+
+    /**
+     * Returns the average grey value of the sub image at the given grid coordinates
+     * @param row row of the sub image in the grid
+     * @param col column of the sub image in the grid
+     * @return the average grey value, between 0 (black) and 1 (white)
+     */
+    public float getBrightness(int row, int col) {
+        prepareBrightness();
+        if (intTileSums != null) {
+            return BrightnessIntegralImage.toBrightness(intTileSums[row * numCols + col],
+                    (long) subImageSize * subImageSize);
+        }
+        if (tileSums != null) {
+            return BrightnessIntegralImage.toBrightness(tileSums[row * numCols + col],
+                    (long) subImageSize * subImageSize);
+        }
+        return brightnessIntegral.getAverageBrightness(col * subImageSize, row * subImageSize,
+                subImageSize, subImageSize);
+    }
+
+    /**
+     * Returns the average color of every sub image, summing the channels of the packed pixels
+     * read a row of pixels at a time
+     * @return the average colors packed as 0xRRGGBB, one array for each row of the grid
+     */
+    public int[][] getAverageColors() {
+        int[][] colors = new int[numRows][numCols];
+        int rowWidth = numCols * subImageSize;
+        int[] rgbRow = new int[rowWidth];
+        long[] redSums = new long[numCols];
+        long[] greenSums = new long[numCols];
+        long[] blueSums = new long[numCols];
+        long tilePixels = (long) subImageSize * subImageSize;
+        for (int row = 0; row < numRows; row++) {
+            Arrays.fill(redSums, 0);
+            Arrays.fill(greenSums, 0);
+            Arrays.fill(blueSums, 0);
+            for (int y = 0; y < subImageSize; y++) {
+                image.getRowRGB(0, row * subImageSize + y, rowWidth, rgbRow);
+                for (int col = 0; col < numCols; col++) {
+                    for (int x = col * subImageSize; x < (col + 1) * subImageSize; x++) {
+                        int rgb = rgbRow[x];
+                        redSums[col] += (rgb >> RED_SHIFT) & MAX_CHANNEL;
+                        greenSums[col] += (rgb >> GREEN_SHIFT) & MAX_CHANNEL;
+                        blueSums[col] += rgb & MAX_CHANNEL;
+                    }
+                }
+            }
+            for (int col = 0; col < numCols; col++) {
+                colors[row][col] = (int) roundedAverage(redSums[col], tilePixels) << RED_SHIFT |
+                        (int) roundedAverage(greenSums[col], tilePixels) << GREEN_SHIFT |
+                        (int) roundedAverage(blueSums[col], tilePixels);
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Divides a sum of channel values by the number of values, rounded to the nearest
+     * @param sum sum of the values
+     * @param count number of values
+     * @return the average value
+     */
+    private static long roundedAverage(long sum, long count) {
+        return (sum + count / 2) / count;
+    }
+
+    /**
+     * Fetches the table the brightness of the sub images is read from, once even when the sub
+     * images are read from several threads. Power of 2 sizes read a level of the image's
+     * brightness pyramid, other sizes read its brightness summed-area table.
+     * Calling it before reading the brightness of the sub images makes sure the table is not
+     * built in the middle of the reads.
+     */
+    public void prepareBrightness() {
+        if (!brightnessPrepared) {
+            synchronized (this) {
+                if (!brightnessPrepared) {
+                    if (Integer.bitCount(subImageSize) == 1) {
+                        BrightnessPyramid pyramid = image.getBrightnessPyramid();
+                        if (BrightnessPyramid.hasIntSums(subImageSize)) {
+                            intTileSums = pyramid.getIntTileSums(subImageSize);
+                        } else {
+                            tileSums = pyramid.getTileSums(subImageSize);
+                        }
+                    } else {
+                        brightnessIntegral = image.getBrightnessIntegral();
+                    }
+                    brightnessPrepared = true;
+                }
+            }
+        }
     }
 
     /**
@@ -24,24 +181,24 @@ public class SubImages implements Iterable<Color[][]>{
      * @return Iterator over the sub images collection
      */
     @Override
-    public Iterator<Color[][]> iterator() {
+    public Iterator<SubImage> iterator() {
         return new Iterator<>() {
             private int row = 0;
             private int col = 0;
 
             @Override
             public boolean hasNext() {
-                return row != subImagesCollection.size() && col != subImagesCollection.get(0).size();
+                return row < numRows && col < numCols;
             }
 
             @Override
-            public Color[][] next() {
+            public SubImage next() {
                 if (!hasNext()){
                     throw new NoSuchElementException();
                 }
-                Color[][] element = subImagesCollection.get(row).get(col);
+                SubImage element = getSubImage(row, col);
                 col++;
-                if(col >= subImagesCollection.get(0).size()){
+                if(col >= numCols){
                     row++;
                     col = 0;
                 }
@@ -0,0 +1,24 @@
+package render_stats;
+
+/**
+ * The stages of a render which are timed separately.
+ * @author Eliyahu Tamarkin
+ */
+public enum RenderStage {
+    /** Reading and decoding the image file */
+    DECODE,
+    /** Copying the decoded pixels into the packed pixel array of the image */
+    COPY_PIXELS,
+    /** Building the brightness table the sub images are read from */
+    BRIGHTNESS_TABLE,
+    /** Rendering the glyphs of chars whose brightness is not known yet */
+    GLYPH_RENDER,
+    /** Matching a char to every sub image */
+    MATCH,
+    /** Averaging the color of every sub image, for colored outputs */
+    COLOR,
+    /** Writing the matched chars to the output */
+    OUTPUT,
+    /** Compressing the written output, part of OUTPUT unless it runs on its own thread */
+    COMPRESS
+}
@@ -0,0 +1,194 @@
+package render_stats;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Process wide statistics of the render stages: how many times each stage ran, its wall time,
+ * the number of items it handled and the bytes allocated while it ran.
+ * Allocations are counted on the thread which timed the stage only, when the JVM supports it.
+ * @author Eliyahu Tamarkin
+ */
+public class RenderStats implements RenderStatsMXBean {
+    private static final String MBEAN_NAME = "ascii_art:type=RenderStats";
+    private static final String SUMMARY_HEADER = String.format("%-17s%10s%12s%12s%14s%14s",
+            "stage", "samples", "total ms", "last ms", "items", "allocated KB");
+    private static final String SUMMARY_FORMAT = "%-17s%10d%12.1f%12.1f%14d%14d";
+    private static final String JSON_STAGE_FORMAT = "\"%s\":{\"samples\":%d,\"totalNanos\":%d," +
+            "\"lastNanos\":%d,\"totalItems\":%d,\"allocatedBytes\":%d}";
+    private static final double NANOS_IN_MILLI = 1_000_000.0;
+    private static final long BYTES_IN_KB = 1024;
+
+    private static final com.sun.management.ThreadMXBean allocationCounter = getAllocationCounter();
+    private static final RenderStats instance = createInstance();
+
+    private final EnumMap<RenderStage, StageStats> stages = new EnumMap<>(RenderStage.class);
+
+    /**
+     * Constructs a new RenderStats instance with no recorded stages
+     */
+    RenderStats() {
+        for (RenderStage stage : RenderStage.values()) {
+            stages.put(stage, new StageStats());
+        }
+    }
+
+    /**
+     * @return the process wide statistics
+     */
+    public static RenderStats getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts timing a stage, the stage is recorded when the returned timer is stopped
+     * @param stage stage to time
+     * @return the running timer
+     */
+    public StageTimer start(RenderStage stage) {
+        return new StageTimer(this, stage);
+    }
+
+    /**
+     * Records a single run of a stage
+     * @param stage stage that ran
+     * @param nanos wall time of the run in nanoseconds
+     * @param items number of items (pixels, chars or sub images) the run handled
+     * @param allocatedBytes bytes allocated during the run
+     */
+    public synchronized void record(RenderStage stage, long nanos, long items,
+                                    long allocatedBytes) {
+        StageStats stageStats = stages.get(stage);
+        stageStats.samples++;
+        stageStats.totalNanos += nanos;
+        stageStats.lastNanos = nanos;
+        stageStats.totalItems += items;
+        stageStats.allocatedBytes += allocatedBytes;
+    }
+
+    @Override
+    public Map<String, Long> getSamples() {
+        return collect(stageStats -> stageStats.samples);
+    }
+
+    @Override
+    public Map<String, Long> getTotalNanos() {
+        return collect(stageStats -> stageStats.totalNanos);
+    }
+
+    @Override
+    public Map<String, Long> getLastNanos() {
+        return collect(stageStats -> stageStats.lastNanos);
+    }
+
+    @Override
+    public Map<String, Long> getTotalItems() {
+        return collect(stageStats -> stageStats.totalItems);
+    }
+
+    @Override
+    public Map<String, Long> getAllocatedBytes() {
+        return collect(stageStats -> stageStats.allocatedBytes);
+    }
+
+    @Override
+    public synchronized String toJson() {
+        StringJoiner joiner = new StringJoiner(",", "{", "}");
+        stages.forEach((stage, stageStats) -> joiner.add(String.format(JSON_STAGE_FORMAT,
+                stage.name(), stageStats.samples, stageStats.totalNanos, stageStats.lastNanos,
+                stageStats.totalItems, stageStats.allocatedBytes)));
+        return joiner.toString();
+    }
+
+    @Override
+    public synchronized void reset() {
+        stages.replaceAll((stage, stageStats) -> new StageStats());
+    }
+
+    /**
+     * Returns a human readable table of the statistics
+     * @return the table, one line per stage
+     */
+    public synchronized String toSummary() {
+        StringJoiner joiner = new StringJoiner(System.lineSeparator());
+        joiner.add(SUMMARY_HEADER);
+        stages.forEach((stage, stageStats) -> joiner.add(String.format(SUMMARY_FORMAT,
+                stage.name(), stageStats.samples, stageStats.totalNanos / NANOS_IN_MILLI,
+                stageStats.lastNanos / NANOS_IN_MILLI, stageStats.totalItems,
+                stageStats.allocatedBytes / BYTES_IN_KB)));
+        return joiner.toString();
+    }
+
+    /**
+     * Returns the number of bytes the current thread allocated so far
+     * @return the number of bytes, or 0 if the JVM does not count them
+     */
+    static long currentThreadAllocatedBytes() {
+        if (allocationCounter == null) {
+            return 0;
+        }
+        return allocationCounter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Collects a single statistic of every stage
+     * @param statistic getter of the statistic
+     * @return map from the stage name to its statistic
+     */
+    private synchronized Map<String, Long> collect(ToLongFunction<StageStats> statistic) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        stages.forEach((stage, stageStats) ->
+                values.put(stage.name(), statistic.applyAsLong(stageStats)));
+        return values;
+    }
+
+    /**
+     * Returns the thread bean used to count allocations, if the JVM supports it
+     * @return the thread bean, or null
+     */
+    private static com.sun.management.ThreadMXBean getAllocationCounter() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threadBean;
+            if (counter.isThreadAllocatedMemorySupported() &&
+                    counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the process wide instance and registers it with the platform MBean server
+     * @return the instance
+     */
+    private static RenderStats createInstance() {
+        RenderStats stats = new RenderStats();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                    new ObjectName(MBEAN_NAME));
+        } catch (JMException e) {
+            Logger.getGlobal().warning("Failed to register the render stats MBean: " + e);
+        }
+        return stats;
+    }
+
+    /**
+     * Statistics of a single stage
+     */
+    private static final class StageStats {
+        private long samples;
+        private long totalNanos;
+        private long lastNanos;
+        private long totalItems;
+        private long allocatedBytes;
+    }
+}
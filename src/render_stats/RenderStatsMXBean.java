@@ -0,0 +1,45 @@
+package render_stats;
+
+import java.util.Map;
+
+/**
+ * Management interface of the render statistics, registered with the platform MBean server.
+ * Every map is keyed by the stage name.
+ * @author Eliyahu Tamarkin
+ */
+public interface RenderStatsMXBean {
+    /**
+     * @return the number of times each stage was recorded
+     */
+    Map<String, Long> getSamples();
+
+    /**
+     * @return the total wall time of each stage in nanoseconds
+     */
+    Map<String, Long> getTotalNanos();
+
+    /**
+     * @return the wall time of the last recording of each stage in nanoseconds
+     */
+    Map<String, Long> getLastNanos();
+
+    /**
+     * @return the total number of items (pixels, chars or sub images) each stage handled
+     */
+    Map<String, Long> getTotalItems();
+
+    /**
+     * @return the total number of bytes allocated by the recording thread during each stage
+     */
+    Map<String, Long> getAllocatedBytes();
+
+    /**
+     * @return all the statistics as a JSON object
+     */
+    String toJson();
+
+    /**
+     * Clears all the statistics
+     */
+    void reset();
+}
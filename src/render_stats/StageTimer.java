@@ -0,0 +1,59 @@
+package render_stats;
+
+/**
+ * Measures the wall time and the bytes allocated by the current thread during a single stage.
+ * The timer can be paused while work which belongs to another stage runs in between,
+ * and must be paused, resumed and stopped on the thread which started it.
+ * @author Eliyahu Tamarkin
+ */
+public class StageTimer {
+    private final RenderStats stats;
+    private final RenderStage stage;
+    private long elapsedNanos;
+    private long allocatedBytes;
+    private long startNanos;
+    private long startAllocatedBytes;
+    private boolean running;
+
+    /**
+     * Constructs and starts a new StageTimer instance
+     * @param stats statistics the stage is recorded into
+     * @param stage stage being timed
+     */
+    StageTimer(RenderStats stats, RenderStage stage) {
+        this.stats = stats;
+        this.stage = stage;
+        resume();
+    }
+
+    /**
+     * Stops counting time until resume is called
+     */
+    public void pause() {
+        if (running) {
+            elapsedNanos += System.nanoTime() - startNanos;
+            allocatedBytes += RenderStats.currentThreadAllocatedBytes() - startAllocatedBytes;
+            running = false;
+        }
+    }
+
+    /**
+     * Continues counting time after a pause
+     */
+    public void resume() {
+        if (!running) {
+            startNanos = System.nanoTime();
+            startAllocatedBytes = RenderStats.currentThreadAllocatedBytes();
+            running = true;
+        }
+    }
+
+    /**
+     * Stops the timer and records the stage
+     * @param items number of items (pixels, chars or sub images) the stage handled
+     */
+    public void stop(long items) {
+        pause();
+        stats.record(stage, elapsedNanos, items, allocatedBytes);
+    }
+}
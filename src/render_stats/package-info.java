@@ -0,0 +1,5 @@
+/**
+ * Lightweight instrumentation of the stages of a render.
+ * @author Eliyahu Tamarkin
+ */
+package render_stats;
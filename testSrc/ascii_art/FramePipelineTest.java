@@ -0,0 +1,178 @@
+package ascii_art;
+
+import image.Image;
+import image.ImageFrames;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the pipeline writes the frames of an animation in order whatever order its
+ * matching threads finish them in, and that frames which fail skip only themselves.
+ * Every frame is a single grey image whose grey value is the index of the frame, so the matcher
+ * can tell the frames apart. A pipeline which stops advancing its index would wait forever, so
+ * the tests time out.
+ * @author Eliyahu Tamarkin
+ */
+@Timeout(60)
+class FramePipelineTest {
+    private static final int NUM_FRAMES = 60;
+    // a power of 2, so the frames are not padded
+    private static final int FRAME_SIZE = 4;
+    private static final int[] NUM_MATCHERS = {1, 2, 4, 8};
+    private static final int[] QUEUE_CAPACITIES = {1, 3};
+    private static final int MAX_MATCH_DELAY_MILLIS = 5;
+    private static final Set<Integer> FAILING_FRAMES = Set.of(0, 7, 8, 31, NUM_FRAMES - 1);
+    private static final long SEED = 21;
+
+    @TempDir
+    Path frameDir;
+
+    @Test
+    void writesFramesInOrder() throws IOException, InterruptedException {
+        writeFrames(NUM_FRAMES);
+        List<Integer> expected = IntStream.range(0, NUM_FRAMES).boxed()
+                .collect(Collectors.toList());
+        for (int numMatchers : NUM_MATCHERS) {
+            for (int queueCapacity : QUEUE_CAPACITIES) {
+                List<Integer> written = new ArrayList<>();
+                int numWritten = run(queueCapacity, numMatchers, FramePipelineTest::matchDelayed,
+                        written);
+                String message = numMatchers + " matchers, queues of " + queueCapacity;
+                assertEquals(expected, written, message);
+                assertEquals(NUM_FRAMES, numWritten, message);
+            }
+        }
+    }
+
+    @Test
+    void skipsFramesWhichFailToMatch() throws IOException, InterruptedException {
+        writeFrames(NUM_FRAMES);
+        List<Integer> expected = IntStream.range(0, NUM_FRAMES)
+                .filter(index -> !FAILING_FRAMES.contains(index)).boxed()
+                .collect(Collectors.toList());
+        Function<Image, char[][]> matcher = image -> {
+            if (FAILING_FRAMES.contains(getFrameIndex(image))) {
+                throw new IllegalStateException("frame failed on purpose");
+            }
+            return matchDelayed(image);
+        };
+        for (int numMatchers : NUM_MATCHERS) {
+            List<Integer> written = new ArrayList<>();
+            int numWritten = run(1, numMatchers, matcher, written);
+            assertEquals(expected, written, numMatchers + " matchers");
+            assertEquals(expected.size(), numWritten, numMatchers + " matchers");
+        }
+    }
+
+    @Test
+    void endsAnimationAtFrameWhichFailsToDecode() throws IOException, InterruptedException {
+        int numValidFrames = NUM_FRAMES / 2;
+        writeFrames(NUM_FRAMES);
+        Files.write(frameDir.resolve(getFrameName(numValidFrames)), new byte[]{1, 2, 3});
+        List<Integer> expected = IntStream.range(0, numValidFrames).boxed()
+                .collect(Collectors.toList());
+        for (int numMatchers : NUM_MATCHERS) {
+            List<Integer> written = new ArrayList<>();
+            int numWritten = run(2, numMatchers, FramePipelineTest::matchDelayed, written);
+            assertEquals(expected, written, numMatchers + " matchers");
+            assertEquals(numValidFrames, numWritten, numMatchers + " matchers");
+        }
+    }
+
+    /**
+     * Runs a pipeline over the frames of the frame directory
+     * @param queueCapacity number of frames each queue holds
+     * @param numMatchers number of matching threads
+     * @param matcher matches the chars of a frame
+     * @param written list the indices of the written frames are added to, in the order they
+     *                were written
+     * @return the number of frames the pipeline reports as written
+     * @throws IOException in case the frame directory could not be opened
+     * @throws InterruptedException in case the test was interrupted
+     */
+    private int run(int queueCapacity, int numMatchers, Function<Image, char[][]> matcher,
+                    List<Integer> written) throws IOException, InterruptedException {
+        FramePipeline pipeline = new FramePipeline(queueCapacity, numMatchers, matcher,
+                (index, chars) -> {
+                    // the chars of a frame hold its index, so the writer must be given them
+                    // together with the index of the same frame
+                    assertArrayEquals(new char[][]{{(char) index}}, chars);
+                    written.add(index);
+                });
+        try (ImageFrames frames = ImageFrames.open(frameDir.toString())) {
+            return pipeline.run(frames);
+        }
+    }
+
+    /**
+     * Matches a frame to a single char holding its index, after a random delay so the matching
+     * threads finish the frames out of order
+     * @param image frame to match
+     * @return the chars of the frame
+     */
+    private static char[][] matchDelayed(Image image) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(MAX_MATCH_DELAY_MILLIS + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new char[][]{{(char) getFrameIndex(image)}};
+    }
+
+    /**
+     * @param image frame written by writeFrames
+     * @return the index of the frame
+     */
+    private static int getFrameIndex(Image image) {
+        return image.getPixel(0, 0).getRed();
+    }
+
+    /**
+     * Writes frame files to the frame directory, in a shuffled order so the directory listing is
+     * not already in the order of the frames
+     * @param numFrames number of frames, at most 256
+     * @throws IOException in case writing a frame failed
+     */
+    private void writeFrames(int numFrames) throws IOException {
+        List<Integer> indices = IntStream.range(0, numFrames).boxed()
+                .collect(Collectors.toList());
+        Collections.shuffle(indices, new Random(SEED));
+        for (int index : indices) {
+            BufferedImage frame = new BufferedImage(FRAME_SIZE, FRAME_SIZE,
+                    BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < FRAME_SIZE; y++) {
+                for (int x = 0; x < FRAME_SIZE; x++) {
+                    frame.setRGB(x, y, index << 16 | index << 8 | index);
+                }
+            }
+            ImageIO.write(frame, "png", frameDir.resolve(getFrameName(index)).toFile());
+        }
+    }
+
+    /**
+     * @param index index of a frame
+     * @return the name of its file, whose number is not zero padded
+     */
+    private static String getFrameName(int index) {
+        return "frame" + index + ".png";
+    }
+}
@@ -0,0 +1,357 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import image.SubImages;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the shortcuts of the brightness matcher give the same chars as a linear scan over
+ * the char set: the lookup table, re-matching only the changed tiles after chars are added or
+ * removed, and matching the rows in parallel. Char sets are changed by random add and remove
+ * steps, including the chars at both ends of the brightness range, and ties are resolved in
+ * favour of the smaller char.
+ * @author Eliyahu Tamarkin
+ */
+class BrightnessMatchEquivalenceTest {
+    private static final String FONT_NAME = "Courier New";
+    private static final int GLYPH_RESOLUTION = 16;
+    private static final char FIRST_CHAR = ' ';
+    private static final char LAST_CHAR = '~';
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_HEIGHT = 128;
+    private static final int[] CHARS_IN_ROW = {16, 64, 128};
+    private static final int PARALLELISM = 4;
+    private static final int NUM_STEPS = 60;
+    private static final int NUM_SYNTHETIC_TILES = 20000;
+    // few distinct brightness levels, so many chars share a value
+    private static final int NUM_SYNTHETIC_LEVELS = 12;
+    private static final int MIN_CHARS = 2;
+    private static final long SEED = 17;
+
+    @Test
+    void tableMatchesLinearScan() {
+        Random random = new Random(SEED);
+        CharBrightnessValues values = createSyntheticValues(random);
+        CharSet charSet = createRandomCharSet(random);
+        for (int step = 0; step < NUM_STEPS; step++) {
+            BrightnessCharTable table = new BrightnessCharTable(charSet, values);
+            for (float tile : createTileValues(random, charSet, values)) {
+                assertEquals(scanMostFitted(tile, charSet, values),
+                        table.getMostFittedCharacter(tile),
+                        "value " + tile + " with " + charSet);
+            }
+            changeCharSet(random, charSet, values);
+        }
+    }
+
+    @Test
+    void rematchMatchesLinearScan() {
+        Random random = new Random(SEED);
+        CharBrightnessValues values = createSyntheticValues(random);
+        CharSet charSet = createRandomCharSet(random);
+        float[] tiles = createTileValues(random, charSet, values);
+        int numCharsInRow = 100;
+        TileMatchState state = createMatchState(tiles, numCharsInRow, charSet, values);
+        for (int step = 0; step < NUM_STEPS; step++) {
+            changeCharSet(random, charSet, values);
+            state.rematch(charSet, new BrightnessCharTable(charSet, values), values);
+            for (int tile = 0; tile < tiles.length; tile++) {
+                assertEquals(scanMostFitted(tiles[tile], charSet, values),
+                        state.getFittedChars()[tile / numCharsInRow][tile % numCharsInRow],
+                        "step " + step + ", tile " + tile + " with " + charSet);
+            }
+        }
+    }
+
+    @Test
+    void tiesFavourSmallerChar() {
+        // a range of 0 to 1 stretches every value to itself, and all of them are exact floats
+        CharBrightnessValues values = new CharBrightnessValues();
+        values.put('a', 0);
+        values.put('b', 0.25f);
+        values.put('c', 0.25f);
+        values.put('d', 0.5f);
+        values.put('e', 0.5f);
+        values.put('f', 1);
+        CharSet charSet = CharSet.of('a', 'b', 'c', 'd', 'e', 'f');
+        BrightnessCharTable table = new BrightnessCharTable(charSet, values);
+        // equal values
+        assertEquals('b', table.getMostFittedCharacter(0.25f));
+        assertEquals('d', table.getMostFittedCharacter(0.5f));
+        // halfway between two values
+        assertEquals('a', table.getMostFittedCharacter(0.125f));
+        assertEquals('b', table.getMostFittedCharacter(0.375f));
+        assertEquals('d', table.getMostFittedCharacter(0.75f));
+
+        // removing the smaller char of a tie hands its tiles to the larger one
+        float[] tiles = {0.25f, 0.375f, 0.5f};
+        TileMatchState state = createMatchState(tiles, tiles.length, charSet, values);
+        assertArrayEquals(new char[]{'b', 'b', 'd'}, state.getFittedChars()[0]);
+        charSet.remove('b');
+        charSet.remove('d');
+        state.rematch(charSet, new BrightnessCharTable(charSet, values), values);
+        assertArrayEquals(new char[]{'c', 'c', 'e'}, state.getFittedChars()[0]);
+        charSet.add('d');
+        state.rematch(charSet, new BrightnessCharTable(charSet, values), values);
+        assertArrayEquals(new char[]{'c', 'c', 'd'}, state.getFittedChars()[0]);
+    }
+
+    @Test
+    void incrementalAndParallelMatchFreshSequential() {
+        GlyphBrightnessIndex index = new GlyphBrightnessIndex();
+        CharSet allChars = new CharSet();
+        allChars.addRange(FIRST_CHAR, LAST_CHAR);
+        BrightnessImgCharMatcher.fillBrightnessIndex(index, FONT_NAME, allChars);
+        CharBrightnessValues values = new CharBrightnessValues();
+        index.fillBrightnessValues(FONT_NAME, GLYPH_RESOLUTION, values);
+
+        Image image = createImage();
+        for (int numCharsInRow : CHARS_IN_ROW) {
+            Random random = new Random(SEED + numCharsInRow);
+            SubImages subImages = image.getSubImages(image.getWidth() / numCharsInRow);
+            BrightnessImgCharMatcher incremental = new BrightnessImgCharMatcher(image, FONT_NAME);
+            BrightnessImgCharMatcher parallel =
+                    new BrightnessImgCharMatcher(image, FONT_NAME, PARALLELISM);
+            CharSet charSet = createRandomCharSet(random);
+            for (int step = 0; step < NUM_STEPS; step++) {
+                String message = numCharsInRow + " chars in row, step " + step + " with " +
+                        charSet;
+                char[][] fresh = new BrightnessImgCharMatcher(image, FONT_NAME)
+                        .chooseChars(numCharsInRow, charSet);
+                for (int row = 0; row < fresh.length; row++) {
+                    for (int col = 0; col < fresh[row].length; col++) {
+                        assertEquals(scanMostFitted(subImages.getBrightness(row, col), charSet,
+                                values), fresh[row][col], message);
+                    }
+                }
+                assertArrayEquals(fresh, incremental.chooseChars(numCharsInRow, charSet),
+                        message);
+                assertArrayEquals(fresh, parallel.chooseChars(numCharsInRow, charSet), message);
+                List<char[]> streamedRows = new ArrayList<>();
+                new BrightnessImgCharMatcher(image, FONT_NAME, PARALLELISM).chooseChars(
+                        numCharsInRow, charSet, row -> streamedRows.add(row.clone()));
+                assertArrayEquals(fresh, streamedRows.toArray(new char[0][]), message);
+                changeCharSet(random, charSet, values);
+            }
+        }
+    }
+
+    /**
+     * Creates a match state of the given tiles, matched with the table of the char set like the
+     * first render of a matcher matches them
+     * @param tiles grey values of the tiles, a whole number of rows
+     * @param numCharsInRow number of tiles in each row
+     * @param charSet chars the tiles are matched with
+     * @param values brightness value of every char
+     * @return the match state
+     */
+    private static TileMatchState createMatchState(float[] tiles, int numCharsInRow,
+                                                   CharSet charSet, CharBrightnessValues values) {
+        TileMatchState state = new TileMatchState(tiles.length / numCharsInRow, numCharsInRow);
+        System.arraycopy(tiles, 0, state.getTileBrightness(), 0, tiles.length);
+        BrightnessCharTable table = new BrightnessCharTable(charSet, values);
+        for (int tile = 0; tile < tiles.length; tile++) {
+            state.getFittedChars()[tile / numCharsInRow][tile % numCharsInRow] =
+                    table.getMostFittedCharacter(tiles[tile]);
+        }
+        state.setCharSet(charSet, table);
+        return state;
+    }
+
+    /**
+     * Returns the char of the set whose stretched brightness is closest to the value, scanning
+     * the chars in increasing order so the smaller char wins a tie
+     * @param value grey value of a tile
+     * @param charSet chars to choose from
+     * @param values brightness value of every char in the set
+     * @return the closest char
+     */
+    private static char scanMostFitted(float value, CharSet charSet,
+                                       CharBrightnessValues values) {
+        float minValue = Float.POSITIVE_INFINITY;
+        float maxValue = Float.NEGATIVE_INFINITY;
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            minValue = Math.min(minValue, values.get((char) c));
+            maxValue = Math.max(maxValue, values.get((char) c));
+        }
+        char best = 0;
+        float bestDifference = Float.POSITIVE_INFINITY;
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            float stretched = minValue == maxValue ? 0 :
+                    (values.get((char) c) - minValue) / (maxValue - minValue);
+            float difference = Math.abs(stretched - value);
+            if (difference < bestDifference) {
+                best = (char) c;
+                bestDifference = difference;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds or removes a random char, or one of the chars at either end of the set's brightness
+     * range, keeping at least two chars in the set
+     * @param random source of the changes
+     * @param charSet set to change
+     * @param values brightness value of every char
+     */
+    private static void changeCharSet(Random random, CharSet charSet,
+                                      CharBrightnessValues values) {
+        switch (random.nextInt(4)) {
+            case 0:
+                charSet.add((char) (FIRST_CHAR + random.nextInt(LAST_CHAR - FIRST_CHAR + 1)));
+                return;
+            case 1:
+                // a char past either end of the range, so the range grows
+                char outside = findRangeEnd(complement(charSet), values, random.nextBoolean());
+                if (outside != 0) {
+                    charSet.add(outside);
+                }
+                return;
+            case 2:
+                if (charSet.size() > MIN_CHARS) {
+                    charSet.remove(findRangeEnd(charSet, values, random.nextBoolean()));
+                }
+                return;
+            default:
+                char[] chars = charSet.toCharArray();
+                if (chars.length > MIN_CHARS) {
+                    charSet.remove(chars[random.nextInt(chars.length)]);
+                }
+        }
+    }
+
+    /**
+     * Returns the smallest char with the lowest or the highest brightness of the set
+     * @param charSet chars to look in
+     * @param values brightness value of every char
+     * @param highest true for the highest brightness, false for the lowest
+     * @return the char, or 0 if the set is empty
+     */
+    private static char findRangeEnd(CharSet charSet, CharBrightnessValues values,
+                                     boolean highest) {
+        char end = 0;
+        for (int c = charSet.nextChar(0); c >= 0; c = charSet.nextChar(c + 1)) {
+            float value = values.get((char) c);
+            if (end == 0 || (highest ? value > values.get(end) : value < values.get(end))) {
+                end = (char) c;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @param charSet chars of the printable range
+     * @return the printable chars which are not in the set
+     */
+    private static CharSet complement(CharSet charSet) {
+        CharSet complement = new CharSet();
+        complement.addRange(FIRST_CHAR, LAST_CHAR);
+        for (char c : charSet.toCharArray()) {
+            complement.remove(c);
+        }
+        return complement;
+    }
+
+    /**
+     * @param random source of the set
+     * @return a random set of printable chars with at least two chars
+     */
+    private static CharSet createRandomCharSet(Random random) {
+        CharSet charSet = new CharSet();
+        while (charSet.size() < MIN_CHARS) {
+            for (char c = FIRST_CHAR; c <= LAST_CHAR; c++) {
+                if (random.nextInt(4) == 0) {
+                    charSet.add(c);
+                }
+            }
+        }
+        return charSet;
+    }
+
+    /**
+     * @param random source of the values
+     * @return brightness values of the printable chars, drawn from a few levels
+     */
+    private static CharBrightnessValues createSyntheticValues(Random random) {
+        CharBrightnessValues values = new CharBrightnessValues();
+        for (char c = FIRST_CHAR; c <= LAST_CHAR; c++) {
+            values.put(c, (float) random.nextInt(NUM_SYNTHETIC_LEVELS) / NUM_SYNTHETIC_LEVELS);
+        }
+        return values;
+    }
+
+    /**
+     * Creates tile values which are random, or exactly the stretched value of a char of the set
+     * or halfway between two of them, so ties are tried as well
+     * @param random source of the values
+     * @param charSet chars the tiles are matched with
+     * @param values brightness value of every char
+     * @return the tile values
+     */
+    private static float[] createTileValues(Random random, CharSet charSet,
+                                            CharBrightnessValues values) {
+        BrightnessCharTable table = new BrightnessCharTable(charSet, values);
+        char[] chars = charSet.toCharArray();
+        float[] tiles = new float[NUM_SYNTHETIC_TILES];
+        for (int tile = 0; tile < tiles.length; tile++) {
+            float first = table.stretch(values.get(chars[random.nextInt(chars.length)]));
+            float second = table.stretch(values.get(chars[random.nextInt(chars.length)]));
+            switch (random.nextInt(3)) {
+                case 0:
+                    tiles[tile] = random.nextFloat();
+                    break;
+                case 1:
+                    tiles[tile] = first;
+                    break;
+                default:
+                    tiles[tile] = (first + second) / 2;
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return an image of smooth gradients and noise, so its tiles cover the whole grey range
+     */
+    private static Image createImage() {
+        Random random = new Random(SEED);
+        int[] pixels = new int[IMAGE_WIDTH * IMAGE_HEIGHT];
+        for (int y = 0; y < IMAGE_HEIGHT; y++) {
+            for (int x = 0; x < IMAGE_WIDTH; x++) {
+                int grey = (x + y) * 255 / (IMAGE_WIDTH + IMAGE_HEIGHT - 2);
+                int noise = y >= IMAGE_HEIGHT / 2 ? random.nextInt(256) : grey;
+                pixels[y * IMAGE_WIDTH + x] = new Color(grey, noise, (grey + noise) / 2).getRGB();
+            }
+        }
+        return new Image() {
+            @Override
+            public Color getPixel(int x, int y) {
+                return new Color(getPixelRGB(x, y));
+            }
+
+            @Override
+            public int getPixelRGB(int x, int y) {
+                return pixels[y * IMAGE_WIDTH + x];
+            }
+
+            @Override
+            public int getWidth() {
+                return IMAGE_WIDTH;
+            }
+
+            @Override
+            public int getHeight() {
+                return IMAGE_HEIGHT;
+            }
+        };
+    }
+}
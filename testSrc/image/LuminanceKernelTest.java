@@ -0,0 +1,95 @@
+package image;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the packed luminance kernel is bit compatible with the scalar one, on runs shorter
+ * than, equal to and longer than the chunk a 16 bit lane holds without carrying.
+ * @author Eliyahu Tamarkin
+ */
+class LuminanceKernelTest {
+    private static final int[] LENGTHS = {1, 15, 16, 17, 255, 256, 257, 511, 4096, 4099};
+    private static final int[] OFFSETS = {0, 1, 7};
+    private static final int[] TILE_SIZES = {1, 3, 16, 256, 257};
+    private static final int NUM_RANDOM_ROWS = 20;
+    private static final long SEED = 19;
+
+    private final LuminanceKernel scalar = new ScalarLuminanceKernel();
+    private final LuminanceKernel packed = new PackedLuminanceKernel();
+
+    @Test
+    void sumsRandomRowsLikeScalar() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUM_RANDOM_ROWS; i++) {
+            for (int length : LENGTHS) {
+                // every bit may be set, including the alpha channel
+                int[] row = random.ints(length + OFFSETS[OFFSETS.length - 1]).toArray();
+                assertSameSums(row, length);
+            }
+        }
+    }
+
+    @Test
+    void sumsFullChannelsLikeScalar() {
+        // the largest channels fill every lane of a chunk up to its top bit
+        for (int pixel : new int[]{0xFFFFFFFF, 0x00FFFFFF, 0xFFFF00FF, 0x80FF80FF, 0}) {
+            for (int length : LENGTHS) {
+                int[] row = new int[length + OFFSETS[OFFSETS.length - 1]];
+                Arrays.fill(row, pixel);
+                assertSameSums(row, length);
+            }
+        }
+    }
+
+    @Test
+    void convertsRowsLikeScalar() {
+        Random random = new Random(SEED);
+        for (int length : LENGTHS) {
+            int[] row = random.ints(length + OFFSETS[OFFSETS.length - 1]).toArray();
+            for (int offset : OFFSETS) {
+                int[] scalarGrey = new int[length];
+                int[] packedGrey = new int[length];
+                scalar.toScaledGrey(row, offset, length, scalarGrey);
+                packed.toScaledGrey(row, offset, length, packedGrey);
+                assertArrayEquals(scalarGrey, packedGrey, "length " + length);
+            }
+        }
+    }
+
+    @Test
+    void addsTileSumsLikeScalar() {
+        Random random = new Random(SEED);
+        for (int length : LENGTHS) {
+            int[] row = random.ints(length).toArray();
+            for (int tileSize : TILE_SIZES) {
+                for (int firstX : OFFSETS) {
+                    int numTiles = (firstX + length + tileSize - 1) / tileSize;
+                    long[] scalarSums = new long[numTiles + 1];
+                    long[] packedSums = new long[numTiles + 1];
+                    scalar.addTileSums(row, 0, length, firstX, tileSize, scalarSums, 1, numTiles);
+                    packed.addTileSums(row, 0, length, firstX, tileSize, packedSums, 1, numTiles);
+                    assertArrayEquals(scalarSums, packedSums,
+                            "length " + length + ", tile size " + tileSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Asserts that both kernels sum the same run of a row, from every offset
+     * @param row packed ARGB pixels
+     * @param length number of pixels to sum
+     */
+    private void assertSameSums(int[] row, int length) {
+        for (int offset : OFFSETS) {
+            assertEquals(scalar.sumScaledGrey(row, offset, length),
+                    packed.sumScaledGrey(row, offset, length), "length " + length);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package image;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that streaming a PNG file gives the same tile brightness as loading it whole through
+ * ImageIO, on files written here with every color type and bit depth, every row filter, Adam7
+ * interlacing, transparency and image data split over many chunks, and that truncated or corrupt
+ * files fail with an IOException instead of being read as other pixels.
+ * @author Eliyahu Tamarkin
+ */
+class PngStreamingTest {
+    private static final byte[] SIGNATURE =
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+    private static final int[][] BIT_DEPTHS = {
+            {GREY, 1}, {GREY, 2}, {GREY, 4}, {GREY, 8}, {GREY, 16},
+            {RGB, 8}, {RGB, 16},
+            {PALETTE, 1}, {PALETTE, 2}, {PALETTE, 4}, {PALETTE, 8},
+            {GREY_ALPHA, 8}, {GREY_ALPHA, 16},
+            {RGB_ALPHA, 8}, {RGB_ALPHA, 16}};
+    private static final int NUM_FILTERS = 5;
+    private static final int INVALID_FILTER = NUM_FILTERS;
+    private static final int MIXED_FILTERS = -1;
+    // odd sizes leave partial bytes at the ends of the rows and padding on every side
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+    // taller than a band of the streaming image, so the rows continue across bands
+    private static final int TALL_HEIGHT = 600;
+    private static final int IDAT_CHUNK_SIZE = 97;
+    private static final int[] TILE_SIZES = {1, 4};
+    // pass start and step of x and y of the seven Adam7 passes
+    private static final int[][] ADAM7_PASSES = {
+            {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4},
+            {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}};
+    private static final long SEED = 15;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void streamsEveryFormatLikeImageIO() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : BIT_DEPTHS) {
+            for (int filter = MIXED_FILTERS; filter < NUM_FILTERS; filter++) {
+                PngFile png = new PngFile(random, format[0], format[1], WIDTH, HEIGHT);
+                assertStreamsLikeImageIO(png.encode(filter, false, false), png.describe(filter));
+            }
+        }
+    }
+
+    @Test
+    void streamsInterlacedFilesLikeImageIO() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : BIT_DEPTHS) {
+            PngFile png = new PngFile(random, format[0], format[1], WIDTH, HEIGHT);
+            assertStreamsLikeImageIO(png.encode(MIXED_FILTERS, true, false),
+                    png.describe(MIXED_FILTERS) + ", interlaced");
+        }
+    }
+
+    @Test
+    void streamsTransparentColorsLikeImageIO() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : BIT_DEPTHS) {
+            if (format[0] == GREY || format[0] == RGB || format[0] == PALETTE) {
+                PngFile png = new PngFile(random, format[0], format[1], WIDTH, HEIGHT);
+                assertStreamsLikeImageIO(png.encode(MIXED_FILTERS, false, true),
+                        png.describe(MIXED_FILTERS) + ", transparent");
+            }
+        }
+    }
+
+    @Test
+    void streamsTallFilesAcrossBands() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : new int[][]{{GREY, 1}, {PALETTE, 4}, {RGB, 8}, {RGB_ALPHA, 16}}) {
+            PngFile png = new PngFile(random, format[0], format[1], WIDTH, TALL_HEIGHT);
+            assertStreamsLikeImageIO(png.encode(MIXED_FILTERS, false, false),
+                    png.describe(MIXED_FILTERS) + ", tall");
+        }
+    }
+
+    @Test
+    void failsOnTruncatedFiles() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : new int[][]{{GREY, 2}, {PALETTE, 8}, {RGB, 16}, {RGB_ALPHA, 8}}) {
+            for (boolean interlaced : new boolean[]{false, true}) {
+                PngFile png = new PngFile(random, format[0], format[1], WIDTH, TALL_HEIGHT);
+                byte[] file = png.encode(MIXED_FILTERS, interlaced, false);
+                // cut inside the image data, at its start, middle and end, and before IEND.
+                // Interlaced files are read by ImageIO, which ignores a missing end of the data
+                // once all the pixels are decoded, so they are only cut before their last pixels.
+                int[] lengths = interlaced ? new int[]{png.firstDataOffset + 1, file.length / 2} :
+                        new int[]{png.firstDataOffset + 1, file.length / 2, file.length - 20,
+                                file.length - png.iendLength};
+                for (int length : lengths) {
+                    Path path = write(Arrays.copyOf(file, length));
+                    assertThrows(IOException.class, () -> streamBrightness(path, 1),
+                            png.describe(MIXED_FILTERS) + (interlaced ? ", interlaced" : "") +
+                                    " cut at " + length + " of " + file.length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void failsOnCorruptImageData() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : new int[][]{{GREY, 4}, {PALETTE, 2}, {RGB, 8}, {GREY_ALPHA, 16}}) {
+            PngFile png = new PngFile(random, format[0], format[1], WIDTH, TALL_HEIGHT);
+            byte[] file = png.encode(MIXED_FILTERS, false, false);
+            for (int i = 0; i < 10; i++) {
+                byte[] corrupt = file.clone();
+                int offset = png.firstDataOffset +
+                        random.nextInt(file.length - png.iendLength - png.firstDataOffset);
+                corrupt[offset] ^= 1 << random.nextInt(Byte.SIZE);
+                Path path = write(corrupt);
+                assertThrows(IOException.class, () -> streamBrightness(path, 1),
+                        png.describe(MIXED_FILTERS) + " with a bit flipped at " + offset);
+            }
+        }
+    }
+
+    @Test
+    void failsOnCorruptCompressedData() throws IOException {
+        Random random = new Random(SEED);
+        for (int[] format : new int[][]{{GREY, 8}, {PALETTE, 4}, {RGB_ALPHA, 16}}) {
+            PngFile png = new PngFile(random, format[0], format[1], WIDTH, TALL_HEIGHT);
+            byte[] file = png.encode(MIXED_FILTERS, false, false);
+            for (int i = 0; i < 10; i++) {
+                // a bit of the data of the first chunk, with the CRC of the chunk fixed, so only
+                // the compressed stream itself shows the corruption
+                byte[] corrupt = file.clone();
+                int offset = png.firstDataOffset + random.nextInt(IDAT_CHUNK_SIZE);
+                corrupt[offset] ^= 1 << random.nextInt(Byte.SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(corrupt, png.firstDataOffset - 4, IDAT_CHUNK_SIZE + 4);
+                int crcOffset = png.firstDataOffset + IDAT_CHUNK_SIZE;
+                for (int b = 0; b < Integer.BYTES; b++) {
+                    corrupt[crcOffset + b] = (byte) (crc.getValue() >> (Byte.SIZE * (3 - b)));
+                }
+                Path path = write(corrupt);
+                assertThrows(IOException.class, () -> streamBrightness(path, 1),
+                        png.describe(MIXED_FILTERS) + " with a bit flipped at " + offset);
+            }
+        }
+    }
+
+    @Test
+    void failsOnInvalidFilter() throws IOException {
+        PngFile png = new PngFile(new Random(SEED), RGB, 8, WIDTH, HEIGHT);
+        Path path = write(png.encode(INVALID_FILTER, false, false));
+        assertThrows(IOException.class, () -> streamBrightness(path, 1));
+    }
+
+    /**
+     * Checks that the brightness of every tile of a streamed file equals the brightness of the
+     * same tile of the file loaded whole
+     * @param file contents of a PNG file
+     * @param message description of the file for failures
+     * @throws IOException in case reading the file failed
+     */
+    private void assertStreamsLikeImageIO(byte[] file, String message) throws IOException {
+        Path path = write(file);
+        FileImage image = new FileImage(path.toString());
+        for (int tileSize : TILE_SIZES) {
+            float[][] streamed = streamBrightness(path, tileSize);
+            assertEquals(image.getHeight() / tileSize, streamed.length, message);
+            for (int row = 0; row < streamed.length; row++) {
+                for (int col = 0; col < streamed[row].length; col++) {
+                    assertEquals(image.getBrightnessPyramid().getAverageBrightness(tileSize, row,
+                            col), streamed[row][col], message + ", tile size " + tileSize +
+                            ", tile (" + row + ", " + col + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a file and collects the brightness of its tiles
+     * @param path PNG file
+     * @param tileSize height and width of each tile
+     * @return the brightness of every tile, row after row
+     * @throws IOException in case reading the file failed
+     */
+    private static float[][] streamBrightness(Path path, int tileSize) throws IOException {
+        try (StreamingImage image = StreamingImage.open(path.toString())) {
+            float[][] brightness = new float[image.getHeight() / tileSize][];
+            image.readTileRows(tileSize, (row, rowBrightness) ->
+                    brightness[row] = rowBrightness.clone());
+            return brightness;
+        }
+    }
+
+    /**
+     * @param file contents of a file
+     * @return a new temporary file of the given contents
+     * @throws IOException in case writing the file failed
+     */
+    private Path write(byte[] file) throws IOException {
+        Path path = Files.createTempFile(tempDir, "image", ".png");
+        Files.write(path, file);
+        return path;
+    }
+
+    /**
+     * Random samples of an image, which are written as a PNG file with the chosen filters and
+     * layout
+     */
+    private static final class PngFile {
+        private final int colorType;
+        private final int bitDepth;
+        private final int width;
+        private final int height;
+        private final int numChannels;
+        private final int[][] samples;
+        private final byte[] palette;
+        private final byte[] paletteAlpha;
+        private final int[] transparentSample;
+        private final Random random;
+        // offset of the data of the first IDAT chunk, and length of the IEND chunk
+        private int firstDataOffset;
+        private final int iendLength = 12;
+
+        /**
+         * @param random source of the samples
+         * @param colorType PNG color type
+         * @param bitDepth bits of every sample
+         * @param width width of the image
+         * @param height height of the image
+         */
+        PngFile(Random random, int colorType, int bitDepth, int width, int height) {
+            this.random = random;
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.width = width;
+            this.height = height;
+            this.numChannels = colorType == RGB ? 3 : colorType == GREY_ALPHA ? 2 :
+                    colorType == RGB_ALPHA ? 4 : 1;
+            int maxSample = 1 << bitDepth;
+            samples = new int[height][width * numChannels];
+            for (int[] row : samples) {
+                for (int i = 0; i < row.length; i++) {
+                    // runs of equal samples, so the filters see both flat and noisy rows
+                    row[i] = i >= numChannels && random.nextInt(4) == 0 ?
+                            row[i - numChannels] : random.nextInt(maxSample);
+                }
+            }
+            if (colorType == PALETTE) {
+                palette = new byte[3 * maxSample];
+                random.nextBytes(palette);
+                paletteAlpha = new byte[maxSample / 2 + 1];
+                random.nextBytes(paletteAlpha);
+            }
+            else {
+                palette = null;
+                paletteAlpha = null;
+            }
+            // a sample value of the image, so some pixels are transparent
+            transparentSample = Arrays.copyOf(samples[height / 2], numChannels);
+        }
+
+        /**
+         * @param filter filter of every row, or MIXED_FILTERS for random filters
+         * @return a description of the file for failures
+         */
+        String describe(int filter) {
+            return String.format("color type %d, bit depth %d, %dx%d, filter %s", colorType,
+                    bitDepth, width, height, filter == MIXED_FILTERS ? "mixed" : filter);
+        }
+
+        /**
+         * Writes the image as a PNG file
+         * @param filter filter of every row, or MIXED_FILTERS for random filters
+         * @param interlaced true to write the image in the seven Adam7 passes
+         * @param transparent true to add a tRNS chunk
+         * @return the contents of the file
+         * @throws IOException never, the file is written to memory
+         */
+        byte[] encode(int filter, boolean interlaced, boolean transparent) throws IOException {
+            ByteArrayOutputStream rawData = new ByteArrayOutputStream();
+            if (interlaced) {
+                for (int[] pass : ADAM7_PASSES) {
+                    int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+                    int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+                    if (passWidth <= 0 || passHeight <= 0) {
+                        continue;
+                    }
+                    int[][] passSamples = new int[passHeight][passWidth * numChannels];
+                    for (int y = 0; y < passHeight; y++) {
+                        for (int x = 0; x < passWidth; x++) {
+                            System.arraycopy(samples[pass[1] + y * pass[3]],
+                                    (pass[0] + x * pass[2]) * numChannels, passSamples[y],
+                                    x * numChannels, numChannels);
+                        }
+                    }
+                    writeRows(rawData, passSamples, filter);
+                }
+            }
+            else {
+                writeRows(rawData, samples, filter);
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+                rawData.writeTo(deflater);
+            }
+            byte[] imageData = compressed.toByteArray();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            file.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(bitDepth);
+            headerData.writeByte(colorType);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            headerData.writeByte(interlaced ? 1 : 0);
+            writeChunk(file, "IHDR", header.toByteArray());
+            if (palette != null) {
+                writeChunk(file, "PLTE", palette);
+            }
+            if (transparent) {
+                writeChunk(file, "tRNS", getTransparency());
+            }
+            firstDataOffset = file.size() + 8;
+            for (int offset = 0; offset < imageData.length; offset += IDAT_CHUNK_SIZE) {
+                writeChunk(file, "IDAT", Arrays.copyOfRange(imageData, offset,
+                        Math.min(offset + IDAT_CHUNK_SIZE, imageData.length)));
+            }
+            writeChunk(file, "IEND", new byte[0]);
+            return file.toByteArray();
+        }
+
+        /**
+         * @return the data of the tRNS chunk, alpha values of the first palette entries or the
+         * samples of the transparent color
+         * @throws IOException never, the chunk is written to memory
+         */
+        private byte[] getTransparency() throws IOException {
+            if (colorType == PALETTE) {
+                return paletteAlpha;
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(data);
+            for (int sample : transparentSample) {
+                out.writeShort(sample);
+            }
+            return data.toByteArray();
+        }
+
+        /**
+         * Packs, filters and writes rows of samples
+         * @param out stream of the uncompressed image data
+         * @param rows samples of the rows
+         * @param filter filter of every row, or MIXED_FILTERS for random filters
+         */
+        private void writeRows(ByteArrayOutputStream out, int[][] rows, int filter) {
+            int bytesPerPixel = Math.max(1, bitDepth * numChannels / Byte.SIZE);
+            byte[] previous = new byte[packRow(rows[0]).length];
+            for (int[] row : rows) {
+                byte[] packed = packRow(row);
+                int rowFilter = filter == MIXED_FILTERS ? random.nextInt(NUM_FILTERS) : filter;
+                out.write(rowFilter);
+                out.write(filterRow(packed, previous, rowFilter, bytesPerPixel), 0,
+                        packed.length);
+                previous = packed;
+            }
+        }
+
+        /**
+         * @param row samples of a row
+         * @return the samples packed big endian, with the last byte padded
+         */
+        private byte[] packRow(int[] row) {
+            byte[] packed = new byte[(row.length * bitDepth + Byte.SIZE - 1) / Byte.SIZE];
+            for (int i = 0; i < row.length; i++) {
+                if (bitDepth == 16) {
+                    packed[2 * i] = (byte) (row[i] >> Byte.SIZE);
+                    packed[2 * i + 1] = (byte) row[i];
+                }
+                else {
+                    int bit = i * bitDepth;
+                    packed[bit / Byte.SIZE] |= row[i] << (Byte.SIZE - bitDepth - bit % Byte.SIZE);
+                }
+            }
+            return packed;
+        }
+
+        /**
+         * Applies a filter of the PNG specification to a packed row
+         * @param row packed row
+         * @param previous packed row above it, zeros for the first row
+         * @param filter filter type, where INVALID_FILTER leaves the row as it is
+         * @param bytesPerPixel bytes of a whole pixel, at least 1
+         * @return the filtered row
+         */
+        private static byte[] filterRow(byte[] row, byte[] previous, int filter,
+                                        int bytesPerPixel) {
+            byte[] filtered = new byte[row.length];
+            for (int i = 0; i < row.length; i++) {
+                int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & 0xFF;
+                int up = previous[i] & 0xFF;
+                int upLeft = i < bytesPerPixel ? 0 : previous[i - bytesPerPixel] & 0xFF;
+                int predictor;
+                switch (filter) {
+                    case 1:
+                        predictor = left;
+                        break;
+                    case 2:
+                        predictor = up;
+                        break;
+                    case 3:
+                        predictor = (left + up) / 2;
+                        break;
+                    case 4:
+                        predictor = paeth(left, up, upLeft);
+                        break;
+                    default:
+                        predictor = 0;
+                }
+                filtered[i] = (byte) (row[i] - predictor);
+            }
+            return filtered;
+        }
+
+        /**
+         * The Paeth predictor of the PNG specification
+         */
+        private static int paeth(int left, int up, int upLeft) {
+            int estimate = left + up - upLeft;
+            int leftDistance = Math.abs(estimate - left);
+            int upDistance = Math.abs(estimate - up);
+            int upLeftDistance = Math.abs(estimate - upLeft);
+            if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+                return left;
+            }
+            return upDistance <= upLeftDistance ? up : upLeft;
+        }
+
+        /**
+         * Writes a chunk with its length and CRC
+         * @param out stream of the file
+         * @param type chunk type
+         * @param data chunk data
+         * @throws IOException never, the file is written to memory
+         */
+        private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data)
+                throws IOException {
+            DataOutputStream chunk = new DataOutputStream(out);
+            byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data);
+            chunk.writeInt(data.length);
+            chunk.write(typeBytes);
+            chunk.write(data);
+            chunk.writeInt((int) crc.getValue());
+        }
+    }
+}